@@ -0,0 +1,196 @@
+package hu.cshb.passwordmanager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * A whole vault in one document (.pwdz), a ZIP archive of:
+ *   MANIFEST, the line "PWDZ 1", then "+ <sha256> <size> <name>" per entry and "- <name>" per deletion
+ *   <name>.pwd per entry, deflated or stored
+ * The manifest is the first member, so an archive is checked while it's streamed, member by member, and nothing is
+ * extracted to disk; only the verified contents are held until the whole archive checks out. Writing reads the store
+ * twice, once for the manifest and once for the members, so only one entry is in memory at a time.
+ * Deletions only appear in incremental backups.
+ */
+final class Archive {
+    static final String EXTENSION = ".pwdz";
+    static final String MIME_TYPE = "application/zip";
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final String HEADER = "PWDZ 1";
+    // Entries are a few hundred bytes, anything near this is a damaged or crafted manifest
+    private static final int MAX_ENTRY_SIZE = 64 * 1024;
+
+    // What an archive holds once every member matched the manifest
+    static final class Contents {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        final List<String> deleted = new ArrayList<>();
+    }
+
+    private static final class Expected {
+        final String digest;
+        final int size;
+
+        Expected(String digest, int size) {
+            this.digest = digest;
+            this.size = size;
+        }
+    }
+
+    private Archive() {
+    }
+
+    // Returns the number of entries written
+    static int write(OutputStream os, PasswordStore store, Collection<String> names, Collection<String> deleted, boolean compress) throws IOException {
+        // The manifest goes first, the digests are kept to catch an entry changing before its member is written
+        List<String> digests = new ArrayList<>(names.size());
+        StringBuilder manifest = new StringBuilder(HEADER).append('\n');
+        for (String name : names) {
+            final byte[] content = store.read(name);
+            final String digest = digest(content);
+            digests.add(digest);
+            manifest.append("+ ").append(digest).append(' ').append(content.length).append(' ').append(name).append('\n');
+        }
+        for (String name : deleted)
+            manifest.append("- ").append(name).append('\n');
+
+        ZipOutputStream zip = new ZipOutputStream(os);
+        zip.setMethod(compress ? ZipOutputStream.DEFLATED : ZipOutputStream.STORED);
+        putEntry(zip, MANIFEST, manifest.toString().getBytes(StandardCharsets.UTF_8), compress);
+        int i = 0;
+        for (String name : names) {
+            final byte[] content = store.read(name);
+            if (!digests.get(i++).equals(digest(content)))
+                throw new IOException(name + " changed during the export");
+            putEntry(zip, name + DirectoryStore.EXTENSION, content, compress);
+        }
+        zip.finish();
+        zip.flush();
+        return names.size();
+    }
+
+    // Throws if a member is missing, unexpected or doesn't match its checksum; nothing is returned from a bad archive
+    static Contents read(InputStream is) throws IOException {
+        ZipInputStream zip = new ZipInputStream(is);
+        ZipEntry member = zip.getNextEntry();
+        if (member == null || !MANIFEST.equals(member.getName()))
+            throw new IOException("Not a password archive");
+        Contents contents = new Contents();
+        final Map<String, Expected> expected = readManifest(zip, contents.deleted);
+
+        while ((member = zip.getNextEntry()) != null) {
+            final String filename = member.getName();
+            if (!filename.endsWith(DirectoryStore.EXTENSION))
+                throw new IOException("Unexpected member " + filename);
+            final String name = filename.substring(0, filename.length() - DirectoryStore.EXTENSION.length());
+            final Expected entry = expected.remove(name);
+            if (entry == null)
+                throw new IOException(name + " is not in the manifest");
+            final byte[] content = readMember(zip, entry.size);
+            if (content == null || !entry.digest.equals(digest(content)))
+                throw new IOException(name + " is damaged");
+            contents.entries.put(name, content);
+        }
+        if (!expected.isEmpty())
+            throw new IOException(expected.size() + " password(s) missing from the archive");
+        return contents;
+    }
+
+    private static Map<String, Expected> readManifest(ZipInputStream zip, List<String> deleted) throws IOException {
+        // Wrapped so closing the reader can't close the archive
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return zip.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return zip.read(b, off, len);
+            }
+        }, StandardCharsets.UTF_8));
+        if (!HEADER.equals(reader.readLine()))
+            throw new IOException("Unsupported archive version");
+        Map<String, Expected> expected = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // Names end up as file names when they're imported or restored, see DirectoryStore.isValidName()
+            if (line.startsWith("- ")) {
+                final String name = line.substring(2);
+                if (!DirectoryStore.isValidName(name))
+                    throw new IOException("Invalid name in the manifest: " + name);
+                deleted.add(name);
+                continue;
+            }
+            final String[] fields = line.split(" ", 4);
+            if (fields.length != 4 || !fields[0].equals("+"))
+                throw new IOException("Damaged manifest");
+            if (!DirectoryStore.isValidName(fields[3]))
+                throw new IOException("Invalid name in the manifest: " + fields[3]);
+            final int size;
+            try {
+                size = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Damaged manifest");
+            }
+            if (size < 0 || size > MAX_ENTRY_SIZE)
+                throw new IOException("Damaged manifest");
+            expected.put(fields[3], new Expected(fields[1], size));
+        }
+        return expected;
+    }
+
+    // Null if the member isn't exactly the given size; never reads more than one byte past it
+    private static byte[] readMember(ZipInputStream zip, int size) throws IOException {
+        byte[] content = new byte[size];
+        int offset = 0, length;
+        while (offset < size && (length = zip.read(content, offset, size - offset)) > 0)
+            offset += length;
+        if (offset < size || zip.read() != -1)
+            return null;
+        return content;
+    }
+
+    private static void putEntry(ZipOutputStream zip, String name, byte[] content, boolean compress) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (!compress) {
+            // Stored members need their size and CRC up front
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, content.length);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    static String digest(byte[] content) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
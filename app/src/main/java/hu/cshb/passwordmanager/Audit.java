@@ -0,0 +1,174 @@
+package hu.cshb.passwordmanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Looks for passwords stored under more than one name, and for weak ones, one entry at a time from several workers.
+ * Each password is decrypted, reduced to an HMAC under a random key that only lives as long as the audit, checked for
+ * strength and wiped; only the HMACs and names are kept, so entries with the same HMAC hold the same password and
+ * nothing that was decrypted outlives its entry.
+ * Shift-encoded entries can't tell a wrong master password from the right one, so they're only included on request.
+ */
+class Audit implements Closeable {
+    // Passwords estimated below this many bits are reported as weak
+    static final int WEAK_BITS = 50;
+    static final int MIN_LENGTH = 8;
+
+    private final PasswordStore mStore;
+    private final char[] mPassword;
+    private final byte[] mPasswordUtf8;
+    private final boolean mLegacy;
+    private final byte[] mHashKey = PasswordCipher.newSalt();
+    private final Map<ByteBuffer, byte[]> mKeys = new HashMap<>();
+    private final Map<ByteBuffer, List<String>> mNamesByHash = new HashMap<>();
+    private final Map<String, String> mWeak = new TreeMap<>();
+
+    final AtomicInteger audited = new AtomicInteger();
+    final AtomicInteger skipped = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    // Takes over the password, it's wiped by close()
+    Audit(PasswordStore store, char[] password, boolean legacy) {
+        mStore = store;
+        mPassword = password;
+        mPasswordUtf8 = PasswordCipher.encodeUtf8(CharBuffer.wrap(password));
+        mLegacy = legacy;
+    }
+
+    // Called from the workers, one entry each
+    void process(String name) {
+        char[] password = null;
+        try {
+            final byte[] content = mStore.read(name);
+            if (PasswordCipher.isEncrypted(content)) {
+                final PasswordCipher.Entry entry = PasswordCipher.parse(content);
+                password = entry.decrypt(key(entry.salt, entry.iterations));
+                if (password == null) {
+                    skipped.incrementAndGet();
+                    return;
+                }
+            } else if (mLegacy) {
+                final char[] coded = ShiftCodec.readCoded(content);
+                ShiftCodec codec = new ShiftCodec();
+                codec.decode(coded, CharBuffer.wrap(mPassword));
+                password = codec.toCharArray();
+                codec.close();
+                Arrays.fill(coded, '\0');
+            } else {
+                skipped.incrementAndGet();
+                return;
+            }
+            final ByteBuffer hash = ByteBuffer.wrap(hash(password));
+            final String weakness = weakness(password);
+            synchronized (this) {
+                List<String> names = mNamesByHash.get(hash);
+                if (names == null)
+                    mNamesByHash.put(hash, names = new ArrayList<>(1));
+                names.add(name);
+                if (weakness != null)
+                    mWeak.put(name, weakness);
+            }
+            audited.incrementAndGet();
+        } catch (IOException ioe) {
+            failed.incrementAndGet();
+        } finally {
+            if (password != null)
+                Arrays.fill(password, '\0');
+        }
+    }
+
+    // Entries usually share one salt, so this is one derivation for the whole audit
+    private synchronized byte[] key(byte[] salt, int iterations) throws IOException {
+        final ByteBuffer id = ByteBuffer.allocate(salt.length + 4).put(salt).putInt(iterations);
+        id.flip();
+        byte[] key = mKeys.get(id);
+        if (key == null)
+            mKeys.put(id, key = PasswordCipher.deriveKey(mPasswordUtf8, salt, iterations));
+        return key;
+    }
+
+    private byte[] hash(char[] password) throws IOException {
+        final byte[] utf8 = PasswordCipher.encodeUtf8(CharBuffer.wrap(password));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(mHashKey, "HmacSHA256"));
+            return mac.doFinal(utf8);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        } finally {
+            Arrays.fill(utf8, (byte) 0);
+        }
+    }
+
+    /*
+     * Why the password is weak, or null. Strength is estimated as length * log2(size of the character classes used),
+     * which overrates dictionary words and patterns, so this only catches the obviously weak ones.
+     */
+    static String weakness(char[] password) {
+        if (password.length < MIN_LENGTH)
+            return "shorter than " + MIN_LENGTH + " characters";
+        boolean lower = false, upper = false, digit = false, symbol = false, other = false;
+        for (char c : password) {
+            if (c >= 'a' && c <= 'z')
+                lower = true;
+            else if (c >= 'A' && c <= 'Z')
+                upper = true;
+            else if (c >= '0' && c <= '9')
+                digit = true;
+            else if (c >= '!' && c <= '~')
+                symbol = true;
+            else
+                other = true;
+        }
+        final int pool = (lower ? 26 : 0) + (upper ? 26 : 0) + (digit ? 10 : 0) + (symbol ? 32 : 0) + (other ? 100 : 0);
+        final double bits = password.length * Math.log(pool) / Math.log(2);
+        if (bits < WEAK_BITS)
+            return String.format(Locale.ROOT, "about %.0f bits", bits);
+        return null;
+    }
+
+    // Names sharing a password, largest group first
+    synchronized List<List<String>> reused() {
+        List<List<String>> clusters = new ArrayList<>();
+        for (List<String> names : mNamesByHash.values()) {
+            if (names.size() < 2)
+                continue;
+            List<String> sorted = new ArrayList<>(names);
+            Collections.sort(sorted);
+            clusters.add(sorted);
+        }
+        Collections.sort(clusters, (a, b) -> a.size() != b.size() ? b.size() - a.size() : a.get(0).compareTo(b.get(0)));
+        return clusters;
+    }
+
+    // Name -> why it's weak, by name
+    synchronized Map<String, String> weak() {
+        return new TreeMap<>(mWeak);
+    }
+
+    @Override
+    public synchronized void close() {
+        Arrays.fill(mPassword, '\0');
+        Arrays.fill(mPasswordUtf8, (byte) 0);
+        Arrays.fill(mHashKey, (byte) 0);
+        for (byte[] key : mKeys.values())
+            Arrays.fill(key, (byte) 0);
+        mKeys.clear();
+    }
+}
@@ -0,0 +1,159 @@
+package hu.cshb.passwordmanager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Password names looked up by the app or web site asking to be autofilled.
+ * Every name is split into case-folded tokens at anything that isn't a letter or digit ("GitHub (work)" -> github,
+ * work). Tokens map to the ids of the names holding them through a hash table, for exact matches, and are also kept
+ * sorted, for prefix matches, so a lookup is a few hash probes and binary searches however many names there are.
+ * An index is immutable. The current one is published through a volatile field, so the autofill service and the
+ * activity share it without locking; every change to the store drops it and the next lookup builds a new one.
+ */
+final class AutofillIndex {
+    static final int MAX_MATCHES = 8;
+
+    private static final int MIN_KEY_LENGTH = 3;
+    // Parts of package names and domains that don't tell one site from another
+    private static final Set<String> GENERIC = new HashSet<>(Arrays.asList("www", "com", "org", "net", "edu", "gov",
+            "app", "apps", "android", "mobile", "web", "login", "signin", "account", "accounts", "auth", "secure", "client"));
+
+    private static volatile AutofillIndex sIndex;
+    private static int sGeneration;
+
+    private final String[] mNames;
+    private final Map<String, int[]> mExact = new HashMap<>();
+    private final String[] mTokens;
+    private final int[] mTokenIds;
+
+    private AutofillIndex(Collection<String> names) {
+        mNames = names.toArray(new String[0]);
+        Map<String, List<Integer>> ids = new HashMap<>();
+        int pairs = 0;
+        for (int id = 0; id < mNames.length; ++id) {
+            for (String token : tokens(mNames[id])) {
+                List<Integer> holders = ids.get(token);
+                if (holders == null)
+                    ids.put(token, holders = new ArrayList<>(1));
+                holders.add(id);
+                ++pairs;
+            }
+        }
+
+        // Sorted (token, id) pairs as two parallel arrays
+        String[] sortedTokens = ids.keySet().toArray(new String[0]);
+        Arrays.sort(sortedTokens);
+        mTokens = new String[pairs];
+        mTokenIds = new int[pairs];
+        int p = 0;
+        for (String token : sortedTokens) {
+            final List<Integer> holders = ids.get(token);
+            final int[] exact = new int[holders.size()];
+            for (int i = 0; i < exact.length; ++i) {
+                exact[i] = holders.get(i);
+                mTokens[p] = token;
+                mTokenIds[p++] = exact[i];
+            }
+            mExact.put(token, exact);
+        }
+    }
+
+    // The current index, built from the store's listing if there's none; call it on a worker thread
+    static AutofillIndex get(PasswordStore store) throws IOException {
+        AutofillIndex index = sIndex;
+        if (index != null)
+            return index;
+        final int generation;
+        synchronized (AutofillIndex.class) {
+            generation = sGeneration;
+        }
+        index = new AutofillIndex(store.list());
+        // Not published if the store changed while it was being built
+        synchronized (AutofillIndex.class) {
+            if (generation == sGeneration)
+                sIndex = index;
+        }
+        return index;
+    }
+
+    static synchronized void invalidate() {
+        ++sGeneration;
+        sIndex = null;
+    }
+
+    /*
+     * Names matching the web domain, or failing that the package name, best matches first: names holding the most
+     * specific part of it as a token, then names with a token starting with it, then the same for the less specific
+     * parts. At most MAX_MATCHES.
+     */
+    List<String> lookup(String packageName, String webDomain) {
+        Set<Integer> matches = new LinkedHashSet<>();
+        for (String key : keys(packageName, webDomain)) {
+            final int[] exact = mExact.get(key);
+            if (exact != null)
+                for (int id : exact)
+                    matches.add(id);
+            int i = Arrays.binarySearch(mTokens, key);
+            if (i < 0)
+                i = -i - 1;
+            for (; i < mTokens.length && mTokens[i].startsWith(key) && matches.size() < MAX_MATCHES; ++i)
+                matches.add(mTokenIds[i]);
+            if (matches.size() >= MAX_MATCHES)
+                break;
+        }
+        List<String> names = new ArrayList<>(matches.size());
+        for (int id : matches) {
+            if (names.size() == MAX_MATCHES)
+                break;
+            names.add(mNames[id]);
+        }
+        return names;
+    }
+
+    // "accounts.google.co.uk" -> google; "com.github.android" -> github
+    static List<String> keys(String packageName, String webDomain) {
+        List<String> keys = new ArrayList<>();
+        if (webDomain != null && !webDomain.isEmpty()) {
+            final String[] labels = NameCatalog.fold(webDomain).split("\\.");
+            // The top level domain is left out, the rest goes from the registered name outwards
+            for (int i = labels.length - 2; i >= 0; --i)
+                addKey(keys, labels[i]);
+        } else if (packageName != null) {
+            final String[] labels = NameCatalog.fold(packageName).split("\\.");
+            for (int i = 1; i < labels.length; ++i)
+                addKey(keys, labels[i]);
+        }
+        return keys;
+    }
+
+    private static void addKey(List<String> keys, String label) {
+        for (String token : tokens(label))
+            if (token.length() >= MIN_KEY_LENGTH && !GENERIC.contains(token) && !keys.contains(token))
+                keys.add(token);
+    }
+
+    private static Set<String> tokens(String name) {
+        Set<String> tokens = new LinkedHashSet<>();
+        final String folded = NameCatalog.fold(name);
+        int start = -1;
+        for (int i = 0; i <= folded.length(); ++i) {
+            final boolean inToken = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (inToken && start < 0)
+                start = i;
+            else if (!inToken && start >= 0) {
+                tokens.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
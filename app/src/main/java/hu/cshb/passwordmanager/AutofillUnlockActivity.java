@@ -0,0 +1,132 @@
+package hu.cshb.passwordmanager;
+
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.service.autofill.Dataset;
+import android.text.InputType;
+import android.view.ContextThemeWrapper;
+import android.view.WindowManager;
+import android.view.autofill.AutofillId;
+import android.view.autofill.AutofillManager;
+import android.view.autofill.AutofillValue;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import androidx.annotation.RequiresApi;
+import androidx.appcompat.app.AlertDialog;
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+// Asks for the master password of the entry picked from the autofill suggestions and hands its password to the autofill framework
+@RequiresApi(Build.VERSION_CODES.O)
+public class AutofillUnlockActivity extends AppCompatActivity {
+    static final String EXTRA_NAME = "hu.cshb.passwordmanager.NAME";
+    static final String EXTRA_IDS = "hu.cshb.passwordmanager.AUTOFILL_IDS";
+
+    private StorageExecutor mStorageExecutor;
+    private String mName;
+    private AutofillId[] mIds;
+    private int mAppTheme;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_SECURE);
+        // Same theme as the app, the preferences are the activity's own
+        mAppTheme = getSharedPreferences(MainActivity.class.getSimpleName(), MODE_PRIVATE).getBoolean("dark_theme", false) ?
+                R.style.AppThemeDark : R.style.AppThemeLight;
+        mStorageExecutor = new StorageExecutor();
+        mName = getIntent().getStringExtra(EXTRA_NAME);
+        final Parcelable[] ids = getIntent().getParcelableArrayExtra(EXTRA_IDS);
+        if (mName == null || ids == null) {
+            finish();
+            return;
+        }
+        mIds = Arrays.copyOf(ids, ids.length, AutofillId[].class);
+        askMasterPassword();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mStorageExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    void askMasterPassword() {
+        EditText editText = new EditText(this);
+        editText.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD);
+        editText.setHint("Master password");
+        new AlertDialog.Builder(new ContextThemeWrapper(this, mAppTheme))
+                .setTitle(mName)
+                .setView(editText)
+                .setPositiveButton("Fill", (dialog, which) -> {
+                    final byte[] masterPassword = PasswordCipher.encodeUtf8(editText.getText());
+                    final char[] masterChars = new char[editText.getText().length()];
+                    editText.getText().getChars(0, masterChars.length, masterChars, 0);
+                    editText.getText().clear();
+                    decode(masterPassword, masterChars);
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> finish())
+                .setOnCancelListener(dialog -> finish())
+                .show();
+    }
+
+    // Reads and decodes the one entry on a worker thread; a wrong master password asks again
+    void decode(byte[] masterPassword, char[] masterChars) {
+        final PasswordStore store = TrackedStore.shared(this);
+        mStorageExecutor.submit(() -> {
+            try {
+                final byte[] content = store.read(mName);
+                if (!PasswordCipher.isEncrypted(content)) {
+                    // Shift-encoded entries decode under any master password, as on the Read tab
+                    final char[] coded = ShiftCodec.readCoded(content);
+                    ShiftCodec codec = new ShiftCodec();
+                    codec.decode(coded, CharBuffer.wrap(masterChars));
+                    final char[] password = codec.toCharArray();
+                    codec.close();
+                    Arrays.fill(coded, '\0');
+                    return password;
+                }
+                final PasswordCipher.Entry entry = PasswordCipher.parse(content);
+                long start = Perf.start("decode.kdf");
+                final byte[] key = PasswordCipher.deriveKey(masterPassword, entry.salt, entry.iterations);
+                Perf.stop("decode.kdf", start);
+                start = Perf.start("decode.aes");
+                try {
+                    return entry.decrypt(key);
+                } finally {
+                    Perf.stop("decode.aes", start);
+                    Arrays.fill(key, (byte) 0);
+                }
+            } finally {
+                Arrays.fill(masterPassword, (byte) 0);
+                Arrays.fill(masterChars, '\0');
+            }
+        }, password -> {
+            if (password == null) {
+                Toast.makeText(this, "Wrong master password!", Toast.LENGTH_LONG).show();
+                askMasterPassword();
+                return;
+            }
+            fill(password);
+        }, ioe -> {
+            Toast.makeText(this, "Couldn't read the password: " + ioe.getMessage(), Toast.LENGTH_LONG).show();
+            finish();
+        });
+    }
+
+    void fill(char[] password) {
+        Dataset.Builder dataset = new Dataset.Builder();
+        // Copied, the value is only parcelled after this activity has finished
+        final AutofillValue value = AutofillValue.forText(String.valueOf(password));
+        for (AutofillId id : mIds)
+            dataset.setValue(id, value);
+        setResult(RESULT_OK, new Intent().putExtra(AutofillManager.EXTRA_AUTHENTICATION_RESULT, dataset.build()));
+        Arrays.fill(password, '\0');
+        finish();
+    }
+}
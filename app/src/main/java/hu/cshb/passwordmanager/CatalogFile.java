@@ -0,0 +1,81 @@
+package hu.cshb.passwordmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Persisted copy of the password names in catalog order, so startup doesn't have to list the store:
+ *   magic, name count, then count * (UTF-8 length as unsigned short, UTF-8 bytes)
+ * It's memory-mapped and decoded in one pass; the store stays authoritative and is compared against it in the background.
+ */
+class CatalogFile {
+    static final String FILENAME = "names.catalog";
+
+    private static final int MAGIC = 0x5057434E; // "PWCN"
+
+    private static final Object sWriteLock = new Object();
+
+    private final File mFile;
+
+    CatalogFile(File directory) {
+        mFile = new File(directory, FILENAME);
+    }
+
+    // Throws if the catalog is missing or damaged, the caller then falls back to listing the store
+    List<String> read() throws IOException {
+        try (FileInputStream is = new FileInputStream(mFile); FileChannel channel = is.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+                throw new IOException(mFile.getName() + " is not a name catalog");
+            final int count = buffer.getInt();
+            List<String> names = new ArrayList<>(Math.min(count, buffer.remaining() / 2));
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < count; ++i) {
+                final int length = buffer.getShort() & 0xFFFF;
+                if (length > bytes.length)
+                    bytes = new byte[length];
+                buffer.get(bytes, 0, length);
+                names.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            }
+            return names;
+        } catch (BufferUnderflowException bue) {
+            throw new IOException(mFile.getName() + " is truncated");
+        }
+    }
+
+    void write(List<String> names) throws IOException {
+        // One writer at a time in the process, e.g. a finishing and a new activity; a tmp file of its own all the same
+        synchronized (sWriteLock) {
+            File tmp = File.createTempFile(mFile.getName(), ".tmp", mFile.getParentFile());
+            try {
+                try (FileOutputStream os = new FileOutputStream(tmp)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+                    out.writeInt(MAGIC);
+                    out.writeInt(names.size());
+                    for (String name : names) {
+                        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                        out.writeShort(bytes.length);
+                        out.write(bytes);
+                    }
+                    out.flush();
+                    os.getFD().sync();
+                }
+                if (!tmp.renameTo(mFile))
+                    throw new IOException("Couldn't replace " + mFile.getName());
+            } catch (IOException | RuntimeException e) {
+                tmp.delete();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package hu.cshb.passwordmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Names of the entries created, modified, renamed or deleted since the last backup, kept so a backup only has to
+ * write what changed:
+ *   magic, chain, number of the next backup in the chain, then the changed names, appended as they change
+ * Backup 0 of a chain is a full archive (the base), every later one an increment over the one before it; a new base
+ * starts a new chain, named after the time it was made, so increments never land on an unrelated base. Whether a
+ * changed name was written or deleted is decided when the increment is made, by looking in the store.
+ */
+class ChangeLog {
+    static final String FILENAME = "changes.log";
+    // Left while changes couldn't be logged, so the next start knows too that the next backup has to be a base
+    static final String LOST_FILENAME = "changes.lost";
+
+    private static final int MAGIC = 0x5057434C; // "PWCL"
+    private static final Pattern BACKUP = Pattern.compile("backup-(\\d{1,18})-(\\d{1,9})" + Pattern.quote(Archive.EXTENSION));
+
+    // The changes a backup covers; anything recorded after it was taken stays in the log
+    static final class Snapshot {
+        final long chain;
+        final int sequence;
+        final int lost;
+        final Map<String, Integer> changes;
+
+        Snapshot(long chain, int sequence, int lost, Map<String, Integer> changes) {
+            this.chain = chain;
+            this.sequence = sequence;
+            this.lost = lost;
+            this.changes = changes;
+        }
+
+        // No base yet, or changes the log can't vouch for
+        boolean needsBase() {
+            return sequence == 0 || lost > 0;
+        }
+    }
+
+    private final File mFile;
+    private final File mLostFile;
+    private long mChain;
+    private int mSequence;
+    // Name -> number of changes so far, to tell whether it changed again while a backup was being written
+    private final Map<String, Integer> mChanges = new HashMap<>();
+    // Changes that couldn't be logged; until a new base covers them no increment is a complete backup
+    private int mLost;
+
+    ChangeLog(File directory) {
+        mFile = new File(directory, FILENAME);
+        mLostFile = new File(directory, LOST_FILENAME);
+        if (mLostFile.exists())
+            mLost = 1;
+        try {
+            read();
+        } catch (IOException ioe) {
+            mSequence = 0;
+            mChanges.clear();
+        }
+    }
+
+    private void read() throws IOException {
+        if (!mFile.exists())
+            return;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(DirectoryStore.readFully(mFile)));
+        if (in.readInt() != MAGIC)
+            throw new IOException(FILENAME + " is not a change log");
+        mChain = in.readLong();
+        mSequence = in.readInt();
+        // A torn name at the end was never acknowledged to the store's caller
+        try {
+            while (in.available() > 0)
+                changed(in.readUTF());
+        } catch (EOFException eofe) {
+
+        }
+    }
+
+    private void changed(String name) {
+        final Integer count = mChanges.get(name);
+        mChanges.put(name, count == null ? 1 : count + 1);
+    }
+
+    // Synced, as a change missing from the log would be missing from every later backup
+    synchronized void record(Collection<String> names) {
+        if (names.isEmpty())
+            return;
+        for (String name : names)
+            changed(name);
+        try {
+            if (!mFile.exists())
+                rewrite();
+            else {
+                try (FileOutputStream os = new FileOutputStream(mFile, true)) {
+                    DataOutputStream out = new DataOutputStream(os);
+                    for (String name : names)
+                        out.writeUTF(name);
+                    out.flush();
+                    os.getFD().sync();
+                }
+            }
+        } catch (IOException ioe) {
+            ++mLost;
+            markLost();
+        }
+    }
+
+    private void markLost() {
+        try (FileOutputStream os = new FileOutputStream(mLostFile)) {
+            os.getFD().sync();
+        } catch (IOException ioe) {
+            // Nothing left to write to, this run still knows
+        }
+    }
+
+    synchronized Snapshot snapshot() {
+        return new Snapshot(mChain, mSequence, mLost, new HashMap<>(mChanges));
+    }
+
+    // After backup number sequence of the chain was written: forgets the changes it covered, unless they changed again since
+    synchronized void exported(Snapshot snapshot, long chain, int sequence) throws IOException {
+        if (sequence == 0)
+            mLost -= snapshot.lost;
+        for (Map.Entry<String, Integer> change : snapshot.changes.entrySet())
+            if (change.getValue().equals(mChanges.get(change.getKey())))
+                mChanges.remove(change.getKey());
+        mChain = chain;
+        mSequence = sequence + 1;
+        rewrite();
+        if (mLost == 0)
+            mLostFile.delete();
+    }
+
+    static String backupName(long chain, int sequence) {
+        return String.format(Locale.US, "backup-%d-%04d%s", chain, sequence, Archive.EXTENSION);
+    }
+
+    // The chain of the newest base among the file names, or -1 if there's none
+    static long newestChain(Collection<String> filenames) {
+        long newest = -1;
+        for (String filename : filenames) {
+            final Matcher matcher = BACKUP.matcher(filename);
+            if (matcher.matches() && Integer.parseInt(matcher.group(2)) == 0)
+                newest = Math.max(newest, Long.parseLong(matcher.group(1)));
+        }
+        return newest;
+    }
+
+    // Every backup file among the file names that doesn't belong to the chain
+    static List<String> otherChains(Collection<String> filenames, long chain) {
+        List<String> others = new ArrayList<>();
+        for (String filename : filenames) {
+            final Matcher matcher = BACKUP.matcher(filename);
+            if (matcher.matches() && Long.parseLong(matcher.group(1)) != chain)
+                others.add(filename);
+        }
+        return others;
+    }
+
+    private void rewrite() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(log);
+        out.writeInt(MAGIC);
+        out.writeLong(mChain);
+        out.writeInt(mSequence);
+        for (String name : mChanges.keySet())
+            out.writeUTF(name);
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            log.writeTo(os);
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile))
+            throw new IOException("Couldn't replace " + FILENAME);
+    }
+}
@@ -0,0 +1,223 @@
+package hu.cshb.passwordmanager;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * One <name>.pwd file per entry, the original storage format.
+ * Updates go through a StoreJournal: a transaction is synced once in the journal and then applied to the files
+ * without syncing them, a file being replaced by writing it aside and renaming it over. Committed transactions that
+ * didn't make it to the files are replayed before the store is first used. Once the journal grows past
+ * CHECKPOINT_BYTES the files written since the last checkpoint are synced and the journal is emptied.
+ */
+class DirectoryStore implements PasswordStore {
+    static final String EXTENSION = ".pwd";
+    private static final String TMP_EXTENSION = EXTENSION + ".tmp";
+    private static final long CHECKPOINT_BYTES = 1024 * 1024;
+
+    private final File mDirectory;
+    private final StoreJournal mJournal;
+    private final Set<String> mUnsynced = new HashSet<>();
+    private volatile boolean mRecovered;
+
+    DirectoryStore(File directory) {
+        mDirectory = directory;
+        mJournal = new StoreJournal(new File(directory, StoreJournal.FILENAME));
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        if (!mRecovered)
+            recover();
+        List<String> names = new ArrayList<>();
+        final File[] passwordFiles = mDirectory.listFiles(pathname -> pathname.getName().endsWith(EXTENSION));
+        if (passwordFiles != null)
+            for (File passwordFile : passwordFiles)
+                names.add(passwordFile.getName().replace(EXTENSION, ""));
+        return names;
+    }
+
+    /*
+     * Names become file names, so they can't hold a path or reach outside the directory, and lines of the archive
+     * manifest, so they can't hold a line break or any other control character. Every store checks them here.
+     */
+    static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.contains(".."))
+            return false;
+        for (int i = 0; i < name.length(); ++i)
+            if (Character.isISOControl(name.charAt(i)))
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return isValidName(name) && file(name).exists();
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        if (!isValidName(name))
+            throw new IOException("Invalid password name " + name);
+        if (!mRecovered)
+            recover();
+        return readFully(file(name));
+    }
+
+    @Override
+    public synchronized void write(String name, byte[] content) throws IOException {
+        commit(Collections.singletonList(new StoreJournal.Op(StoreJournal.OP_PUT, name, content)));
+    }
+
+    // Journalled as writing the content under the new name and deleting the old one, which replays the same every time
+    @Override
+    public synchronized boolean rename(String from, String to) {
+        try {
+            if (!contains(from) || contains(to))
+                return false;
+            final byte[] content = read(from);
+            List<StoreJournal.Op> ops = new ArrayList<>();
+            ops.add(new StoreJournal.Op(StoreJournal.OP_PUT, to, content));
+            ops.add(new StoreJournal.Op(StoreJournal.OP_DELETE, from, null));
+            commit(ops);
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        try {
+            if (!contains(name))
+                return false;
+            commit(Collections.singletonList(new StoreJournal.Op(StoreJournal.OP_DELETE, name, null)));
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void commit(StoreBatch batch) throws IOException {
+        List<StoreJournal.Op> ops = new ArrayList<>(batch.size());
+        for (Map.Entry<String, byte[]> write : batch.writes().entrySet())
+            ops.add(new StoreJournal.Op(StoreJournal.OP_PUT, write.getKey(), write.getValue()));
+        for (String name : batch.deletes())
+            ops.add(new StoreJournal.Op(StoreJournal.OP_DELETE, name, null));
+        if (!ops.isEmpty())
+            commit(ops);
+    }
+
+    @Override
+    public File file(String name) {
+        if (!isValidName(name))
+            throw new IllegalArgumentException("Invalid password name " + name);
+        return new File(mDirectory, name + EXTENSION);
+    }
+
+    private synchronized void commit(List<StoreJournal.Op> ops) throws IOException {
+        // Checked before anything is journalled, so a bad name never gets replayed
+        for (StoreJournal.Op op : ops)
+            if (!isValidName(op.name))
+                throw new IOException("Invalid password name " + op.name);
+        recover();
+        mJournal.append(ops);
+        try {
+            for (StoreJournal.Op op : ops)
+                apply(op);
+        } catch (IOException ioe) {
+            // Committed all the same, the next use replays it
+            mRecovered = false;
+            throw ioe;
+        }
+        if (mJournal.length() > CHECKPOINT_BYTES)
+            checkpoint();
+    }
+
+    // Replays what the journal committed but the files may have missed, once per store
+    private synchronized void recover() throws IOException {
+        if (mRecovered)
+            return;
+        final List<StoreJournal.Op> committed = mJournal.recover();
+        final File[] leftovers = mDirectory.listFiles(pathname -> pathname.getName().endsWith(TMP_EXTENSION));
+        if (leftovers != null)
+            for (File leftover : leftovers)
+                leftover.delete();
+        for (StoreJournal.Op op : committed)
+            apply(op);
+        if (!committed.isEmpty())
+            checkpoint();
+        mRecovered = true;
+    }
+
+    private void apply(StoreJournal.Op op) throws IOException {
+        final File file = file(op.name);
+        if (op.type == StoreJournal.OP_DELETE) {
+            if (!file.delete() && file.exists())
+                throw new IOException("Couldn't delete " + file.getName());
+            mUnsynced.remove(op.name);
+            return;
+        }
+        File tmp = new File(mDirectory, op.name + TMP_EXTENSION);
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            os.write(op.content);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Couldn't replace " + file.getName());
+        }
+        mUnsynced.add(op.name);
+    }
+
+    // Makes the applied files durable on their own, after which the journal isn't needed for them
+    private void checkpoint() throws IOException {
+        for (String name : mUnsynced) {
+            final File file = file(name);
+            if (file.exists()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.getFD().sync();
+                }
+            }
+        }
+        // Deletions and renames are directory updates; before API 26 there's no way to sync a directory from Java
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            try (FileChannel directory = FileChannel.open(mDirectory.toPath(), StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException ioe) {
+                // Not supported by every file system, the file syncs above usually commit the directory too
+            }
+        }
+        mJournal.reset();
+        mUnsynced.clear();
+    }
+
+    static byte[] readFully(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            byte[] content = new byte[(int) file.length()];
+            int offset = 0, length;
+            while (offset < content.length && (length = is.read(content, offset, content.length - offset)) > 0)
+                offset += length;
+            if (offset < content.length) {
+                byte[] truncated = new byte[offset];
+                System.arraycopy(content, 0, truncated, 0, offset);
+                return truncated;
+            }
+            return content;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package hu.cshb.passwordmanager;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// The children of a SAF directory, listed with a single provider query and indexed by display name
+class DocumentIndex {
+    static class Document {
+        final Uri uri;
+        final long size;
+
+        Document(Uri uri, long size) {
+            this.uri = uri;
+            this.size = size;
+        }
+    }
+
+    private final Map<String, Document> mDocuments = new HashMap<>();
+
+    // Called on a storage thread
+    DocumentIndex(ContentResolver resolver, Uri treeUri, Uri directoryUri) throws IOException {
+        final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, DocumentsContract.getDocumentId(directoryUri));
+        final String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_SIZE
+        };
+        Cursor cursor = resolver.query(childrenUri, projection, null, null, null);
+        if (cursor == null)
+            throw new IOException("Can't list the destination directory.");
+        try {
+            while (cursor.moveToNext()) {
+                final Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(0));
+                mDocuments.put(cursor.getString(1), new Document(uri, cursor.isNull(2) ? -1 : cursor.getLong(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    Document get(String displayName) {
+        return mDocuments.get(displayName);
+    }
+
+    Set<String> displayNames() {
+        return Collections.unmodifiableSet(mDocuments.keySet());
+    }
+
+    // True if the document has exactly the given content; the size is checked first so most changed files aren't read at all
+    static boolean matches(ContentResolver resolver, Document document, byte[] content) {
+        if (document.size != content.length)
+            return false;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] expected = digest.digest(content);
+            InputStream is = resolver.openInputStream(document.uri);
+            if (is == null)
+                return false;
+            try {
+                byte[] buffer = new byte[1024];
+                int length;
+                while ((length = is.read(buffer)) > 0)
+                    digest.update(buffer, 0, length);
+            } finally {
+                is.close();
+            }
+            return MessageDigest.isEqual(expected, digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+}
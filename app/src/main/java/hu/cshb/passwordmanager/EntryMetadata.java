@@ -0,0 +1,43 @@
+package hu.cshb.passwordmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// What's known about an entry besides its password; kept apart from it, see MetadataFile
+final class EntryMetadata {
+    // Well within the 64 KiB a modified UTF-8 string can take in the MetadataFile
+    static final int MAX_NOTES_LENGTH = 10000;
+
+    final String username;
+    final String url;
+    final String notes;
+    final List<String> tags;
+
+    EntryMetadata(String username, String url, String notes, List<String> tags) {
+        this.username = username;
+        this.url = url;
+        this.notes = notes;
+        this.tags = Collections.unmodifiableList(new ArrayList<>(tags));
+    }
+
+    boolean isEmpty() {
+        return username.isEmpty() && url.isEmpty() && notes.isEmpty() && tags.isEmpty();
+    }
+
+    // "work, bank,,Work" -> work, bank: trimmed, without empty ones and case-insensitive duplicates
+    static List<String> parseTags(String text) {
+        Set<String> folded = new LinkedHashSet<>();
+        List<String> tags = new ArrayList<>();
+        for (String tag : text.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("#"))
+                tag = tag.substring(1).trim();
+            if (!tag.isEmpty() && folded.add(NameCatalog.fold(tag)))
+                tags.add(tag);
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,80 @@
+package hu.cshb.passwordmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Derived keys of the current session, so a master password costs one key derivation per unlock rather than one
+ * per entry or keystroke. Entries are looked up by an HMAC of (salt, iterations, master password) under a random
+ * per-process key, so the cache never holds the master password itself.
+ * All keys are wiped once the cache hasn't been used for IDLE_TIMEOUT_MILLIS.
+ */
+class KeyCache {
+    static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_KEYS = 4;
+
+    private final byte[] mFingerprintKey = PasswordCipher.newSalt();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mEvict = this::clear;
+    private final LinkedHashMap<ByteBuffer, byte[]> mKeys = new LinkedHashMap<>(MAX_KEYS, 0.75f, true);
+
+    byte[] fingerprint(byte[] password, byte[] salt, int iterations) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(mFingerprintKey, "HmacSHA256"));
+            mac.update(salt);
+            mac.update(ByteBuffer.allocate(4).putInt(0, iterations).array());
+            return mac.doFinal(password);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        }
+    }
+
+    /*
+     * A copy of the key, the caller wipes it when done. The cache's own copy can be wiped at any time, by clear() or
+     * eviction on the main thread, and a worker mustn't encrypt under a key that's being zeroed.
+     */
+    synchronized byte[] get(byte[] fingerprint) {
+        final byte[] key = mKeys.get(ByteBuffer.wrap(fingerprint));
+        if (key == null)
+            return null;
+        touch();
+        return key.clone();
+    }
+
+    // Keeps a copy, the caller still owns and wipes key
+    synchronized void put(byte[] fingerprint, byte[] key) {
+        final byte[] previous = mKeys.put(ByteBuffer.wrap(fingerprint), key.clone());
+        if (previous != null)
+            Arrays.fill(previous, (byte) 0);
+        if (mKeys.size() > MAX_KEYS) {
+            Iterator<Map.Entry<ByteBuffer, byte[]>> eldest = mKeys.entrySet().iterator();
+            Arrays.fill(eldest.next().getValue(), (byte) 0);
+            eldest.remove();
+        }
+        touch();
+    }
+
+    synchronized void clear() {
+        for (byte[] key : mKeys.values())
+            Arrays.fill(key, (byte) 0);
+        mKeys.clear();
+        mHandler.removeCallbacks(mEvict);
+    }
+
+    private void touch() {
+        mHandler.removeCallbacks(mEvict);
+        mHandler.postDelayed(mEvict, IDLE_TIMEOUT_MILLIS);
+    }
+}
@@ -2,13 +2,21 @@ package hu.cshb.passwordmanager;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.text.Editable;
+import android.text.InputType;
+import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.util.Base64;
 import android.util.TypedValue;
 import android.view.ContextThemeWrapper;
 import android.view.LayoutInflater;
@@ -20,13 +28,11 @@ import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
-import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.NumberPicker;
 import android.widget.PopupMenu;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -43,20 +49,30 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.tabs.TabLayoutMediator;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import hu.cshb.passwordmanager.databinding.ActivityMainBinding;
@@ -69,12 +85,12 @@ interface MarginSetter {
     void setMargin(NumberPicker numberPicker, int marginLeft);
 }
 
-public class MainActivity extends AppCompatActivity {
-    private static final char CHAR_LOWEST = 33;
-    private static final char CHAR_HIGHEST = 126;
-
-    private static final String NO_PASSWORDS = "<no passwords>";
+@FunctionalInterface
+interface OverwriteChoice {
+    void onChosen(boolean[] overwrite);
+}
 
+public class MainActivity extends AppCompatActivity {
     private String mFileToExport;
     private String mLastLogMessage;
 
@@ -83,39 +99,92 @@ public class MainActivity extends AppCompatActivity {
     private LayoutReadBinding mLayoutReadBinding;
     private LayoutGenerateBinding mLayoutGenerateBinding;
 
-    private List<String> mPasswordNames;
-    private ArrayAdapter<String> mAdapter;
+    private TrackedStore mStore;
+    private ChangeLog mChangeLog;
+    private NameCatalog mPasswordNames;
+    private CatalogFile mCatalogFile;
+    private MetadataFile mMetadataFile;
+    // Name -> metadata, null until it's read
+    private Map<String, EntryMetadata> mMetadata;
+    private final KeyCache mKeyCache = new KeyCache();
+    private byte[] mKdfSalt;
+    private int mKdfIterations;
+    private WordList mWordList;
+    private PasswordListAdapter mAdapter;
 
     // Settings
     private boolean mDarkTheme;
     private boolean mConfirmPasswords;
     private boolean mShowPasswords;
+    private boolean mSingleFileVault;
 
     private LinearLayout.LayoutParams mDefaultSpaceLayoutParams;
 
     @StyleRes int mAppTheme;
 
+    StorageExecutor mStorageExecutor;
+
     ActivityResultLauncher<String[]> mActivityResultImport;
     ActivityResultLauncher<Uri> mActivityResultExport;
     ActivityResultLauncher<Uri> mActivityResultExportSingle;
+    ActivityResultLauncher<String> mActivityResultExportArchive;
+    ActivityResultLauncher<Uri> mActivityResultBackup;
+    ActivityResultLauncher<Uri> mActivityResultRestore;
+    ActivityResultLauncher<String> mActivityResultGenerateBatch;
+    ActivityResultLauncher<String> mActivityResultDiagnostics;
+    private int mBatchCount;
+    private boolean mCompressArchive = true;
+    private Bundle mRestoredState;
+    // Fills the New tab once it's built, see fillNewTab()
+    private Runnable mPendingNewTab;
+
+    // Switches to the New tab and runs fill once the tab is built, which selecting it does if it hasn't been visited yet
+    void fillNewTab(Runnable fill) {
+        mActivityMainBinding.tabLayout.selectTab(mActivityMainBinding.tabLayout.getTabAt(0));
+        if (mLayoutNewBinding != null)
+            fill.run();
+        else
+            mPendingNewTab = fill;
+    }
+
+    // Keeps the restored state of a tab that hasn't been built yet, so it survives being saved again
+    void carryState(Bundle outState, String tab) {
+        if (mRestoredState == null)
+            return;
+        Bundle carried = new Bundle(mRestoredState);
+        for (String key : mRestoredState.keySet())
+            if (!key.contains("_" + tab + "_"))
+                carried.remove(key);
+        outState.putAll(carried);
+    }
 
     @Override
     protected void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString("editText_new_filename", mLayoutNewBinding.editTextNewFilename.getText().toString());
-        outState.putString("editText_new_masterPassword", mLayoutNewBinding.editTextNewMasterPassword.getText().toString());
-        outState.putString("editText_new_masterPasswordConfirm", mLayoutNewBinding.editTextNewMasterPasswordConfirm.getText().toString());
-        outState.putString("editText_new_passwordToStore", mLayoutNewBinding.editTextNewPasswordToStore.getText().toString());
-        outState.putString("editText_new_passwordToStoreConfirm", mLayoutNewBinding.editTextNewPasswordToStoreConfirm.getText().toString());
-        outState.putString("editText_read_search", mLayoutReadBinding.editTextReadSearch.getText().toString());
-        outState.putString("editText_read_masterPassword", mLayoutReadBinding.editTextReadMasterPassword.getText().toString());
-        outState.putInt("numberPicker_generate_length", mLayoutGenerateBinding.numberPickerGenerateLength.getValue());
-        outState.putInt("numberPicker_generate_lettersMin", mLayoutGenerateBinding.numberPickerGenerateLettersMin.getValue());
-        outState.putInt("numberPicker_generate_lettersMax", mLayoutGenerateBinding.numberPickerGenerateLettersMax.getValue());
-        outState.putInt("numberPicker_generate_numbersMin", mLayoutGenerateBinding.numberPickerGenerateNumbersMin.getValue());
-        outState.putInt("numberPicker_generate_numbersMax", mLayoutGenerateBinding.numberPickerGenerateNumbersMax.getValue());
-        outState.putInt("numberPicker_generate_symbolsMin", mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.getValue());
-        outState.putInt("numberPicker_generate_symbolsMax", mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.getValue());
+        if (mLayoutNewBinding == null)
+            carryState(outState, "new");
+        else
+            outState.putString("editText_new_filename", mLayoutNewBinding.editTextNewFilename.getText().toString());
+        // Password fields aren't saved, they'd end up as Strings in the Bundle and in the saved state parcel
+        if (mLayoutReadBinding == null)
+            carryState(outState, "read");
+        else
+            outState.putString("editText_read_search", mLayoutReadBinding.editTextReadSearch.getText().toString());
+        if (mLayoutGenerateBinding == null)
+            carryState(outState, "generate");
+        else {
+            outState.putInt("numberPicker_generate_length", mLayoutGenerateBinding.numberPickerGenerateLength.getValue());
+            outState.putInt("numberPicker_generate_lettersMin", mLayoutGenerateBinding.numberPickerGenerateLettersMin.getValue());
+            outState.putInt("numberPicker_generate_lettersMax", mLayoutGenerateBinding.numberPickerGenerateLettersMax.getValue());
+            outState.putInt("numberPicker_generate_numbersMin", mLayoutGenerateBinding.numberPickerGenerateNumbersMin.getValue());
+            outState.putInt("numberPicker_generate_numbersMax", mLayoutGenerateBinding.numberPickerGenerateNumbersMax.getValue());
+            outState.putInt("numberPicker_generate_symbolsMin", mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.getValue());
+            outState.putInt("numberPicker_generate_symbolsMax", mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.getValue());
+            outState.putBoolean("checkBox_generate_passphrase", mLayoutGenerateBinding.checkBoxGeneratePassphrase.isChecked());
+            outState.putInt("numberPicker_generate_words", mLayoutGenerateBinding.numberPickerGenerateWords.getValue());
+            outState.putString("editText_generate_separator", mLayoutGenerateBinding.editTextGenerateSeparator.getText().toString());
+            outState.putBoolean("checkBox_generate_capitalize", mLayoutGenerateBinding.checkBoxGenerateCapitalize.isChecked());
+        }
     }
 
     @Override
@@ -127,54 +196,64 @@ public class MainActivity extends AppCompatActivity {
         mDarkTheme = preferences.getBoolean("dark_theme", false);
         mConfirmPasswords = preferences.getBoolean("confirm_passwords", true);
         mShowPasswords = preferences.getBoolean("show_passwords", false);
+        mSingleFileVault = preferences.getBoolean("single_file_vault", false);
+        mKdfIterations = preferences.getInt("kdf_iterations", 0);
+        Perf.sEnabled = preferences.getBoolean("diagnostics", false);
+        final long firstFrameStart = Perf.start("startup.first_frame");
+        final String kdfSalt = preferences.getString("kdf_salt", null);
+        if (kdfSalt != null)
+            mKdfSalt = Base64.decode(kdfSalt, Base64.NO_WRAP);
+        else {
+            mKdfSalt = PasswordCipher.newSalt();
+            preferences.edit().putString("kdf_salt", Base64.encodeToString(mKdfSalt, Base64.NO_WRAP)).apply();
+        }
 
         mAppTheme = mDarkTheme ? R.style.AppThemeDark : R.style.AppThemeLight;
         setTheme(mAppTheme);
 
-        final LayoutInflater layoutInflater = getLayoutInflater();
-        mActivityMainBinding = ActivityMainBinding.inflate(layoutInflater);
-        mLayoutNewBinding = LayoutNewBinding.inflate(layoutInflater);
-        mLayoutReadBinding = LayoutReadBinding.inflate(layoutInflater);
-        mLayoutGenerateBinding = LayoutGenerateBinding.inflate(layoutInflater);
-
-        mPasswordNames = new ArrayList<>();
-        final File[] passwordFiles = getFilesDir().listFiles(pathname -> pathname.getName().endsWith(".pwd"));
-        if (passwordFiles == null || passwordFiles.length == 0)
-            mPasswordNames.add(NO_PASSWORDS);
-        else for (File passwordFile : passwordFiles)
-            mPasswordNames.add(passwordFile.getName().replace(".pwd", ""));
-        Collections.sort(mPasswordNames, String.CASE_INSENSITIVE_ORDER);
-
-        mActivityMainBinding.viewPager2.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
-            @Override
-            public void onGlobalLayout() {
-                final int lengthLeft = mLayoutGenerateBinding.numberPickerGenerateLength.getLeft();
-                final int letterLeft = mLayoutGenerateBinding.numberPickerGenerateLettersMin.getLeft();
-                final int numberLeft = mLayoutGenerateBinding.numberPickerGenerateNumbersMin.getLeft();
-                final int symbolLeft = mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.getLeft();
-                final int maxLeft = Math.max(Math.max(Math.max(lengthLeft, letterLeft), numberLeft), symbolLeft);
-
-                if (maxLeft == 0)
-                    return;
-
-                MarginSetter marginSetter = (numberPicker, marginLeft) -> {
-                    LinearLayout.LayoutParams params = (LinearLayout.LayoutParams) numberPicker.getLayoutParams();
-                    if (params.leftMargin != marginLeft) {
-                        params.setMargins(marginLeft, 0, 0, 0);
-                        numberPicker.setLayoutParams(params);
-                    }
-                };
-
-                marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateLength, maxLeft - lengthLeft);
-                marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateLettersMin, maxLeft - letterLeft);
-                marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateNumbersMin, maxLeft - numberLeft);
-                marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateSymbolsMin, maxLeft - symbolLeft);
-
-                mActivityMainBinding.viewPager2.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+        // The tabs are inflated by ViewPager2Adapter, the visible one first and the others once the first frame is out
+        mActivityMainBinding = ActivityMainBinding.inflate(getLayoutInflater());
+        mRestoredState = savedInstanceState;
+
+        mStorageExecutor = new StorageExecutor();
+        if (mKdfIterations == 0)
+            mStorageExecutor.submit(this::kdfIterations, iterations -> {}, ioe -> {});
+        // The same for every activity and across recreation, the old activity's queued writes still go to it
+        mStore = TrackedStore.shared(this);
+        // The store's own, a second ChangeLog over the same file would drop the names this one appends when it rewrites
+        mChangeLog = mStore.changeLog();
+        if (mSingleFileVault && !mStore.isSingleFile()) {
+            final TrackedStore store = mStore;
+            mStorageExecutor.submit(() -> {
+                store.convert(true);
+                return true;
+            }, converted -> {}, ioe -> Toast.makeText(this, "Couldn't open the password vault: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
+        }
+        mCatalogFile = new CatalogFile(getFilesDir());
+        List<String> storedNames = new ArrayList<>();
+        boolean cataloged = true;
+        final long listStart = Perf.start("startup.names");
+        try {
+            storedNames = mCatalogFile.read();
+        } catch (IOException catalogUnreadable) {
+            cataloged = false;
+            try {
+                storedNames = mStore.list();
+            } catch (IOException ioe) {
+                Toast.makeText(this, "Couldn't list passwords: " + ioe.getMessage(), Toast.LENGTH_LONG).show();
             }
-        });
-
-        mAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, mPasswordNames);
+        }
+        mPasswordNames = new NameCatalog(storedNames);
+        Perf.stop("startup.names", listStart);
+        if (!cataloged)
+            saveCatalog();
+
+        mAdapter = new PasswordListAdapter(mPasswordNames);
+        mMetadataFile = new MetadataFile(getFilesDir());
+        mStorageExecutor.submit(mMetadataFile::read, metadata -> {
+            mMetadata = metadata;
+            mAdapter.setMetadata(new HashMap<>(metadata));
+        }, ioe -> Toast.makeText(this, "Couldn't read usernames, URLs, notes and tags: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
         mActivityMainBinding.viewPager2.setAdapter(new ViewPager2Adapter(savedInstanceState));
         new TabLayoutMediator(mActivityMainBinding.tabLayout, mActivityMainBinding.viewPager2,
                 (tab, position) -> {
@@ -191,19 +270,39 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }).attach();
         setContentView(mActivityMainBinding.getRoot());
+        mActivityMainBinding.getRoot().getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                mActivityMainBinding.getRoot().getViewTreeObserver().removeOnPreDrawListener(this);
+                Perf.stop("startup.first_frame", firstFrameStart);
+                reportFullyDrawn();
+                // Builds the tabs that aren't visible when there's nothing else to do
+                Looper.myQueue().addIdleHandler(() -> {
+                    mActivityMainBinding.viewPager2.setOffscreenPageLimit(2);
+                    return false;
+                });
+                return true;
+            }
+        });
+        mActivityMainBinding.getRoot().post(this::verifyCatalog);
+        // Only a journal with names in it holds anything back, an empty one is started over by the next change
+        if (Rekey.isPending(getFilesDir()))
+            mStorageExecutor.submit(() -> Rekey.countJournaled(getFilesDir()), this::offerInterruptedRekey, ioe -> {});
         mActivityMainBinding.tabLayout.addOnTabSelectedListener(new TabLayout.OnTabSelectedListener() {
             @Override
             public void onTabSelected(TabLayout.Tab tab) {
                 switch (tab.getPosition()) {
                     case 0:
-                        mLayoutNewBinding.editTextNewFilename.requestFocus();
+                        if (mLayoutNewBinding != null)
+                            mLayoutNewBinding.editTextNewFilename.requestFocus();
                         break;
                     case 1:
-                        if (mLayoutReadBinding.listView.getCheckedItemCount() == 1)
+                        if (mLayoutReadBinding != null && mAdapter.getSelected() != null)
                             mLayoutReadBinding.editTextReadMasterPassword.requestFocus();
                         break;
                     case 2:
-                        mLayoutGenerateBinding.numberPickerGenerateLength.requestFocus();
+                        if (mLayoutGenerateBinding != null)
+                            mLayoutGenerateBinding.numberPickerGenerateLength.requestFocus();
                         break;
                 }
             }
@@ -220,106 +319,86 @@ public class MainActivity extends AppCompatActivity {
         });
 
         mActivityResultImport = registerForActivityResult(new ActivityResultContracts.OpenMultipleDocuments(), uris -> {
-            Uri source;
-            Cursor cursor;
-            String filename;
-            List<Pair<Uri, File>> overwriteTasks = new ArrayList<>();
-            AtomicInteger filesCopied = new AtomicInteger(), skipped = new AtomicInteger(), unknown = new AtomicInteger(), total = new AtomicInteger();
-            for (int i = 0; i < uris.size(); ++i) {
-                source = uris.get(i);
-                filename = "";
-                if (Objects.equals(source.getScheme(), "content")) {
-                    cursor = getContentResolver().query(source, null, null, null, null);
-                    if (cursor != null) {
-                        cursor.moveToFirst();
-                        filename = cursor.getString(cursor.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME));
-                        cursor.close();
-                    }
-                } else
-                    filename = source.getLastPathSegment();
-                if (filename != null) {
-                    if (!filename.endsWith(".pwd")) {
-                        unknown.incrementAndGet();
-                        total.incrementAndGet();
-                        continue;
-                    }
-                    File destination = new File(getFilesDir(), filename);
-                    if (destination.exists()) {
-                        overwriteTasks.add(new Pair<>(source, destination));
-                    } else {
-                        try {
-                            copy(source, destination);
-                            filesCopied.incrementAndGet();
-                            mPasswordNames.remove(NO_PASSWORDS);
-                            mPasswordNames.add(filename.replace(".pwd", ""));
-                        } catch (IOException ioe) {
-
-                        }
-                        total.incrementAndGet();
-                    }
-                } else
-                    total.incrementAndGet();
+            if (uris.isEmpty()) {
+                return;
             }
-            if (overwriteTasks.isEmpty()) {
-                sumUpImportExport(uris.size(), filesCopied.get(), unknown.get(), skipped.get(), "import");
-            } else {
-                AlertDialog.Builder builder = new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme)).setTitle("Confirm overwrite file");
-                View dialogView = getLayoutInflater().inflate(R.layout.alertdialog_mass_overwrite, null);
-                LinearLayout linearLayout = dialogView.findViewById(R.id.linearLayout_filesToOverwrite);
-                dialogView.findViewById(R.id.button_checkAll).setOnClickListener(v -> {
-                    for (int i = 0; i < linearLayout.getChildCount(); ++i) {
-                        View child = linearLayout.getChildAt(i);
-                        if (child instanceof CheckBox)
-                            ((CheckBox) child).setChecked(true);
-                    }
-                });
-                dialogView.findViewById(R.id.button_uncheckAll).setOnClickListener(v -> {
-                    for (int i = 0; i < linearLayout.getChildCount(); ++i) {
-                        View child = linearLayout.getChildAt(i);
-                        if (child instanceof CheckBox)
-                            ((CheckBox) child).setChecked(false);
-                    }
-                });
 
-                for (Pair<Uri, File> overwriteTask : overwriteTasks) {
-                    String fileToOverwrite = overwriteTask.second.getName();
-                    CheckBox checkBox = new CheckBox(getApplicationContext());
-                    checkBox.setText(fileToOverwrite.replace(".pwd", ""));
-                    checkBox.setTag(overwriteTask);
-                    linearLayout.addView(checkBox);
+            List<Pair<String, byte[]>> overwriteTasks = Collections.synchronizedList(new ArrayList<>());
+            List<String> imported = Collections.synchronizedList(new ArrayList<>());
+            StoreBatch batch = new StoreBatch();
+            AtomicInteger filesToCopy = new AtomicInteger(), filesCopied = new AtomicInteger(), skipped = new AtomicInteger(), unknown = new AtomicInteger();
+            List<String> damaged = Collections.synchronizedList(new ArrayList<>());
+            Transfer.resetStatistics();
+            showProgress(0, uris.size());
+            mStorageExecutor.forEach(uris.size(), i -> {
+                final Uri source = uris.get(i);
+                final String filename = displayName(source);
+                if (filename == null) {
+                    filesToCopy.incrementAndGet();
+                    return;
                 }
+                if (filename.endsWith(Archive.EXTENSION)) {
+                    // Streamed and checked as a whole, a damaged archive imports nothing
+                    final long start = Perf.start("import.archive");
+                    try (InputStream is = getContentResolver().openInputStream(source)) {
+                        if (is == null)
+                            throw new IOException("Can't read " + filename);
+                        final Archive.Contents contents = Archive.read(is);
+                        filesToCopy.addAndGet(contents.entries.size());
+                        for (Map.Entry<String, byte[]> entry : contents.entries.entrySet())
+                            importEntry(entry.getKey(), entry.getValue(), batch, imported, overwriteTasks);
+                    } catch (IOException ioe) {
+                        damaged.add(filename + ": " + ioe.getMessage());
+                    } finally {
+                        Perf.stop("import.archive", start);
+                    }
+                    return;
+                }
+                filesToCopy.incrementAndGet();
+                if (!filename.endsWith(".pwd")) {
+                    unknown.incrementAndGet();
+                    return;
+                }
+                final String name = filename.replace(".pwd", "");
+                if (!DirectoryStore.isValidName(name)) {
+                    unknown.incrementAndGet();
+                    return;
+                }
+                final long start = Perf.start("import.read");
+                try {
+                    importEntry(name, read(source), batch, imported, overwriteTasks);
+                } catch (IOException ioe) {
 
-                builder.setView(dialogView);
-                builder.setPositiveButton("OK", (dialog, which) -> {
-                    for (int i = 0; i < linearLayout.getChildCount(); ++i) {
-                        View child = linearLayout.getChildAt(i);
-                        if (child instanceof CheckBox) {
-                            CheckBox checkBox = (CheckBox) child;
-                            if (checkBox.isChecked()) {
-                                Pair<Uri, File> overwriteTask = (Pair<Uri, File>) checkBox.getTag();
-                                try {
-                                    copy(overwriteTask.first, overwriteTask.second);
-                                    filesCopied.incrementAndGet();
-                                } catch (IOException ioe) {
-
-                                }
-                                total.incrementAndGet();
-                            } else {
-                                skipped.incrementAndGet();
-                            }
+                } finally {
+                    Perf.stop("import.read", start);
+                }
+            }, done -> showProgress(done, uris.size()), () -> commitImport(batch, imported, filesCopied, () -> {
+                hideProgress();
+                for (String message : damaged)
+                    Toast.makeText(this, "Archive skipped, " + message, Toast.LENGTH_LONG).show();
+                if (overwriteTasks.isEmpty()) {
+                    sumUpImportExport(filesToCopy.get(), filesCopied.get(), unknown.get(), skipped.get(), 0, "import");
+                    return;
+                }
+                List<String> names = new ArrayList<>();
+                for (Pair<String, byte[]> overwriteTask : overwriteTasks)
+                    names.add(overwriteTask.first);
+                confirmOverwrite(names, overwrite -> {
+                    StoreBatch overwrites = new StoreBatch();
+                    List<String> overwritten = new ArrayList<>();
+                    for (int i = 0; i < overwrite.length; ++i) {
+                        if (!overwrite[i]) {
+                            skipped.incrementAndGet();
+                            continue;
                         }
+                        overwrites.write(overwriteTasks.get(i).first, overwriteTasks.get(i).second);
+                        overwritten.add(overwriteTasks.get(i).first);
                     }
-                    total.incrementAndGet();
-                    dialog.dismiss();
-                });
-                builder.setNegativeButton("Cancel", (dialog, which) -> {
-                    skipped.addAndGet(overwriteTasks.size());
-                    total.addAndGet(overwriteTasks.size());
-                    dialog.dismiss();
+                    commitImport(overwrites, overwritten, filesCopied, () -> {
+                        sumUpImportExport(filesToCopy.get(), filesCopied.get(), unknown.get(), skipped.get(), 0, "import");
+                    });
                 });
-                builder.setOnDismissListener(dialog -> sumUpImportExport(uris.size(), filesCopied.get(), unknown.get(), skipped.get(), "import"));
-                builder.show();
-            }
+            }));
         });
 
         mActivityResultExport = registerForActivityResult(new ActivityResultContracts.OpenDocumentTree(), treeUri -> {
@@ -327,145 +406,237 @@ public class MainActivity extends AppCompatActivity {
                 return;
             }
 
-            DocumentFile root = DocumentFile.fromTreeUri(getApplicationContext(), treeUri);
-            if (root == null) {
-                return;
-            }
-
-            DocumentFile destinationDir = root.findFile("passwords");
-            if (destinationDir == null) {
-                root.createDirectory("passwords");
-                destinationDir = root.findFile("passwords");
-            } else if (destinationDir.isFile()) {
-                Toast.makeText(getApplicationContext(), "Can't export to " + destinationDir.getName() + ": it's an existing file.", Toast.LENGTH_LONG).show();
-                return;
-            }
-            DocumentFile destination;
-            AtomicInteger filesCopied = new AtomicInteger(), unknown = new AtomicInteger(), skipped = new AtomicInteger(), total = new AtomicInteger();
-            List<Pair<File, Uri>> overwriteTasks = new ArrayList<>();
-            for (String filename : mPasswordNames) {
-                destination = destinationDir.findFile(filename + ".pwd");
-                if (destination == null) {
-                    destination = destinationDir.createFile("*/*", filename + ".pwd");
+            final List<String> passwordNames = mPasswordNames.snapshot().names();
+            List<Pair<String, Uri>> overwriteTasks = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger filesCopied = new AtomicInteger(), unchanged = new AtomicInteger(), skipped = new AtomicInteger();
+            Transfer.resetStatistics();
+            mStorageExecutor.submit(() -> {
+                DocumentFile destinationDir = openExportDirectory(treeUri);
+                return new Pair<>(destinationDir, new DocumentIndex(getContentResolver(), treeUri, destinationDir.getUri()));
+            }, destination -> {
+                final DocumentFile destinationDir = destination.first;
+                final DocumentIndex existing = destination.second;
+                showProgress(0, passwordNames.size());
+                mStorageExecutor.forEach(passwordNames.size(), i -> {
+                    final String filename = passwordNames.get(i);
                     try {
-                        copy(new File(getFilesDir(), filename + ".pwd"), destination.getUri());
-                        filesCopied.incrementAndGet();
+                        DocumentIndex.Document document = existing.get(filename + ".pwd");
+                        if (document == null) {
+                            DocumentFile created = destinationDir.createFile("*/*", filename + ".pwd");
+                            if (created == null)
+                                return;
+                            copy(filename, created.getUri());
+                            filesCopied.incrementAndGet();
+                        } else if (DocumentIndex.matches(getContentResolver(), document, mStore.read(filename))) {
+                            unchanged.incrementAndGet();
+                        } else {
+                            overwriteTasks.add(new Pair<>(filename, document.uri));
+                        }
                     } catch (IOException ioe) {
 
                     }
-                    total.incrementAndGet();
-                } else {
-                    overwriteTasks.add(new Pair<>(new File(getFilesDir(), filename + ".pwd"), destination.getUri()));
-                }
-            }
-            if (overwriteTasks.isEmpty()) {
-                sumUpImportExport(mPasswordNames.size(), filesCopied.get(), unknown.get(), skipped.get(), "export");
-            } else {
-                AlertDialog.Builder builder = new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme)).setTitle("Confirm overwrite file");
-                View dialogView = getLayoutInflater().inflate(R.layout.alertdialog_mass_overwrite, null);
-                LinearLayout linearLayout = dialogView.findViewById(R.id.linearLayout_filesToOverwrite);
-                dialogView.findViewById(R.id.button_checkAll).setOnClickListener(v -> {
-                    for (int i = 0; i < linearLayout.getChildCount(); ++i) {
-                        View child = linearLayout.getChildAt(i);
-                        if (child instanceof CheckBox)
-                            ((CheckBox) child).setChecked(true);
-                    }
-                });
-                dialogView.findViewById(R.id.button_uncheckAll).setOnClickListener(v -> {
-                    for (int i = 0; i < linearLayout.getChildCount(); ++i) {
-                        View child = linearLayout.getChildAt(i);
-                        if (child instanceof CheckBox)
-                            ((CheckBox) child).setChecked(false);
+                }, done -> showProgress(done, passwordNames.size()), () -> {
+                    hideProgress();
+                    if (overwriteTasks.isEmpty()) {
+                        sumUpImportExport(passwordNames.size(), filesCopied.get(), 0, skipped.get(), unchanged.get(), "export");
+                        return;
                     }
-                });
-
-                for (Pair<File, Uri> overwriteTask : overwriteTasks) {
-                    String fileToOverwrite = overwriteTask.first.getName();
-                    CheckBox checkBox = new CheckBox(getApplicationContext());
-                    checkBox.setText(fileToOverwrite.replace(".pwd", ""));
-                    checkBox.setTag(overwriteTask);
-                    linearLayout.addView(checkBox);
-                }
-
-                builder.setView(dialogView);
-                builder.setPositiveButton("OK", (dialog, which) -> {
-                    for (int i = 0; i < linearLayout.getChildCount(); ++i) {
-                        View child = linearLayout.getChildAt(i);
-                        if (child instanceof CheckBox) {
-                            CheckBox checkBox = (CheckBox) child;
-                            if (checkBox.isChecked()) {
-                                Pair<File, Uri> overwriteTask = (Pair<File, Uri>) checkBox.getTag();
-                                try {
-                                    copy(overwriteTask.first, overwriteTask.second);
-                                    filesCopied.incrementAndGet();
-                                } catch (IOException ioe) {
-
-                                }
-                                total.incrementAndGet();
-                            } else {
+                    List<String> names = new ArrayList<>();
+                    for (Pair<String, Uri> overwriteTask : overwriteTasks)
+                        names.add(overwriteTask.first);
+                    confirmOverwrite(names, overwrite -> {
+                        showProgress(0, overwrite.length);
+                        mStorageExecutor.forEach(overwrite.length, i -> {
+                            if (!overwrite[i]) {
                                 skipped.incrementAndGet();
+                                return;
                             }
-                        }
-                    }
-                    total.incrementAndGet();
-                    dialog.dismiss();
-                });
-                builder.setNegativeButton("Cancel", (dialog, which) -> {
-                    skipped.addAndGet(overwriteTasks.size());
-                    total.addAndGet(overwriteTasks.size());
-                    dialog.dismiss();
+                            try {
+                                copy(overwriteTasks.get(i).first, overwriteTasks.get(i).second);
+                                filesCopied.incrementAndGet();
+                            } catch (IOException ioe) {
+
+                            }
+                        }, done -> showProgress(done, overwrite.length), () -> {
+                            hideProgress();
+                            sumUpImportExport(passwordNames.size(), filesCopied.get(), 0, skipped.get(), unchanged.get(), "export");
+                        });
+                    });
                 });
-                builder.setOnDismissListener(dialog -> sumUpImportExport(mPasswordNames.size(), filesCopied.get(), unknown.get(), skipped.get(), "export"));
-                builder.show();
+            }, ioe -> Toast.makeText(getApplicationContext(), ioe.getMessage(), Toast.LENGTH_LONG).show());
+        });
+
+        mActivityResultExportArchive = registerForActivityResult(new ActivityResultContracts.CreateDocument(Archive.MIME_TYPE), uri -> {
+            if (uri == null) {
+                return;
             }
+
+            final List<String> passwordNames = mPasswordNames.snapshot().names();
+            final boolean compress = mCompressArchive;
+            final PasswordStore store = mStore;
+            showProgress(0, 1);
+            mStorageExecutor.submit(() -> {
+                final long start = Perf.start("export.archive");
+                try (OutputStream os = getContentResolver().openOutputStream(uri, "wt")) {
+                    if (os == null)
+                        throw new IOException("Can't write " + uri);
+                    return Archive.write(os, store, passwordNames, Collections.emptyList(), compress);
+                } finally {
+                    Perf.stop("export.archive", start);
+                }
+            }, exported -> {
+                hideProgress();
+                sumUpImportExport(passwordNames.size(), exported, 0, 0, 0, "export");
+            }, ioe -> {
+                hideProgress();
+                Toast.makeText(this, "Couldn't export the archive: " + ioe.getMessage(), Toast.LENGTH_LONG).show();
+            });
         });
 
-        mActivityResultExportSingle = registerForActivityResult(new ActivityResultContracts.OpenDocumentTree(), treeUri -> {
+        mActivityResultBackup = registerForActivityResult(new ActivityResultContracts.OpenDocumentTree(), treeUri -> {
             if (treeUri == null) {
                 return;
             }
 
-            DocumentFile root = DocumentFile.fromTreeUri(getApplicationContext(), treeUri);
-            if (root == null) {
+            final PasswordStore store = mStore;
+            mStorageExecutor.submit(() -> {
+                final long start = Perf.start("backup");
+                try {
+                    return backup(treeUri, store);
+                } finally {
+                    Perf.stop("backup", start);
+                }
+            }, message -> {
+                mLastLogMessage = message;
+                Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+            }, ioe -> Toast.makeText(this, "Backup failed: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
+        });
+
+        mActivityResultRestore = registerForActivityResult(new ActivityResultContracts.OpenDocumentTree(), treeUri -> {
+            if (treeUri == null) {
                 return;
             }
 
-            DocumentFile destinationDir = root.findFile("passwords");
-            if (destinationDir == null) {
-                root.createDirectory("passwords");
-                destinationDir = root.findFile("passwords");
-            } else if (destinationDir.isFile()) {
-                Toast.makeText(getApplicationContext(), "Can't export to " + destinationDir.getName() + ": it's an existing file.", Toast.LENGTH_LONG).show();
+            final PasswordStore store = mStore;
+            showProgress(0, 1);
+            mStorageExecutor.submit(() -> restore(treeUri, store), restored -> {
+                hideProgress();
+                final StoreBatch batch = restored.second;
+                if (batch.size() == 0) {
+                    Toast.makeText(this, "The passwords already match the backup.", Toast.LENGTH_LONG).show();
+                    return;
+                }
+                new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                        .setTitle("Restore backup")
+                        .setMessage("Replaying " + restored.first + " backup file(s) restores " + batch.writes().size() + " password(s) and deletes "
+                                + batch.deletes().size() + ". Passwords with the same names are replaced. Continue?")
+                        .setPositiveButton("Restore", (dialog, which) -> {
+                            mStorageExecutor.submit(() -> {
+                                store.commit(batch);
+                                return batch.size();
+                            }, committed -> {
+                                mLastLogMessage = "Restored " + batch.writes().size() + " password(s) and deleted " + batch.deletes().size() + ".";
+                                Toast.makeText(this, mLastLogMessage, Toast.LENGTH_LONG).show();
+                                verifyCatalog();
+                            }, ioe -> Toast.makeText(this, "Couldn't restore the backup: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
+                            dialog.dismiss();
+                        })
+                        .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                        .show();
+            }, ioe -> {
+                hideProgress();
+                Toast.makeText(this, "Couldn't read the backup: " + ioe.getMessage(), Toast.LENGTH_LONG).show();
+            });
+        });
+
+        mActivityResultExportSingle = registerForActivityResult(new ActivityResultContracts.OpenDocumentTree(), treeUri -> {
+            if (treeUri == null) {
                 return;
             }
-            DocumentFile destination = destinationDir.findFile(mFileToExport + ".pwd");
-            if (destination == null) {
-                destination = destinationDir.createFile("*/*", mFileToExport + ".pwd");
-                try {
-                    copy(new File(getFilesDir(), mFileToExport + ".pwd"), destination.getUri());
-                    Toast.makeText(getApplicationContext(), "Successfully exported " + mFileToExport, Toast.LENGTH_LONG).show();
-                } catch (IOException ioe) {
-                    Toast.makeText(getApplicationContext(), "Error exporting " + mFileToExport + ": " + ioe.getMessage(), Toast.LENGTH_LONG).show();
+
+            final String fileToExport = mFileToExport;
+            mStorageExecutor.submit(() -> {
+                DocumentFile destinationDir = openExportDirectory(treeUri);
+                DocumentFile destination = destinationDir.findFile(fileToExport + ".pwd");
+                if (destination != null)
+                    return destination.getUri();
+                destination = destinationDir.createFile("*/*", fileToExport + ".pwd");
+                copy(fileToExport, destination.getUri());
+                return null;
+            }, existing -> {
+                if (existing == null) {
+                    Toast.makeText(getApplicationContext(), "Successfully exported " + fileToExport, Toast.LENGTH_LONG).show();
+                    return;
                 }
-            } else {
                 AlertDialog.Builder builder = new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme)).setTitle("Confirm overwrite file");
-                builder.setMessage("A password named " + mFileToExport.replace(".pwd", "") + " already exists. Do you want to overwrite it?");
-                Uri finalDestination = destination.getUri();
+                builder.setMessage("A password named " + fileToExport + " already exists. Do you want to overwrite it?");
                 builder.setPositiveButton("Yes", (dialog, which) -> {
-                    try {
-                        copy(new File(getFilesDir(), mFileToExport + ".pwd"), finalDestination);
-                        Toast.makeText(getApplicationContext(), "Successfully exported " + mFileToExport, Toast.LENGTH_LONG).show();
-                    } catch (IOException ioe) {
-                        Toast.makeText(getApplicationContext(), "Error exporting " + mFileToExport + ": " + ioe.getMessage(), Toast.LENGTH_LONG).show();
-                    }
+                    mStorageExecutor.submit(() -> {
+                        copy(fileToExport, existing);
+                        return null;
+                    }, done -> Toast.makeText(getApplicationContext(), "Successfully exported " + fileToExport, Toast.LENGTH_LONG).show(),
+                       ioe -> Toast.makeText(getApplicationContext(), "Error exporting " + fileToExport + ": " + ioe.getMessage(), Toast.LENGTH_LONG).show());
                     dialog.dismiss();
                 });
                 builder.setNegativeButton("No", (dialog, which) -> dialog.dismiss());
                 builder.show();
+            }, ioe -> Toast.makeText(getApplicationContext(), "Error exporting " + fileToExport + ": " + ioe.getMessage(), Toast.LENGTH_LONG).show());
+        });
+
+        mActivityResultDiagnostics = registerForActivityResult(new ActivityResultContracts.CreateDocument("text/plain"), uri -> {
+            if (uri == null) {
+                return;
+            }
+
+            final String report = "Device: " + Build.MANUFACTURER + " " + Build.MODEL + ", API " + Build.VERSION.SDK_INT + "\n"
+                    + "Copied " + Transfer.bytesTransferred() + " bytes at " + Transfer.bytesPerSecond() / 1024 + " KiB/s since the last import/export\n\n" + Perf.report();
+            mStorageExecutor.submit(() -> {
+                try (OutputStream os = getContentResolver().openOutputStream(uri, "wt")) {
+                    if (os == null)
+                        throw new IOException("Can't write " + uri);
+                    os.write(report.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            }, done -> Toast.makeText(this, "Diagnostics report saved.", Toast.LENGTH_LONG).show(),
+               ioe -> Toast.makeText(this, "Couldn't save the report: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
+        });
+
+        mActivityResultGenerateBatch = registerForActivityResult(new ActivityResultContracts.CreateDocument("text/plain"), uri -> {
+            // The activity may have been recreated while the picker was open, before the Generate tab was built again
+            if (uri == null || mLayoutGenerateBinding == null) {
+                return;
             }
+
+            final int count = mBatchCount;
+            final boolean passphrases = mLayoutGenerateBinding.checkBoxGeneratePassphrase.isChecked();
+            final PasswordGenerator generator = newGenerator();
+            mStorageExecutor.submit(() -> {
+                try (OutputStream os = getContentResolver().openOutputStream(uri)) {
+                    if (os == null)
+                        throw new IOException("Can't write " + uri);
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+                    if (passphrases)
+                        newPassphraseGenerator().write(count, writer);
+                    else
+                        generator.write(count, writer);
+                    writer.flush();
+                }
+                return count;
+            }, generated -> Toast.makeText(this, "Generated " + generated + " password(s).", Toast.LENGTH_LONG).show(),
+               ioe -> Toast.makeText(this, "Couldn't save the passwords: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        mStorageExecutor.shutdown();
+        mKeyCache.clear();
+        final ViewPager2Adapter adapter = (ViewPager2Adapter) mActivityMainBinding.viewPager2.getAdapter();
+        if (adapter != null)
+            adapter.release();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_main, menu);
@@ -479,6 +650,7 @@ public class MainActivity extends AppCompatActivity {
         menu.findItem(R.id.action_dark_theme).setChecked(mDarkTheme);
         menu.findItem(R.id.action_confirm_passwords).setChecked(mConfirmPasswords);
         menu.findItem(R.id.action_show_passwords).setChecked(mShowPasswords);
+        menu.findItem(R.id.action_single_file_vault).setChecked(mSingleFileVault);
         return true;
     }
 
@@ -493,12 +665,54 @@ public class MainActivity extends AppCompatActivity {
             Uri initialUri = Uri.parse(Environment.getExternalStorageDirectory().toURI().toString());
             mActivityResultExport.launch(initialUri);
             return true;
+        } else if (itemId == R.id.action_export_archive) {
+            CheckBox compress = new CheckBox(this);
+            compress.setText("Compress");
+            compress.setChecked(mCompressArchive);
+            new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                    .setTitle("Export as archive")
+                    .setMessage("Every password is saved into one document.")
+                    .setView(compress)
+                    .setPositiveButton("Export", (dialog, which) -> {
+                        mCompressArchive = compress.isChecked();
+                        mActivityResultExportArchive.launch("passwords" + Archive.EXTENSION);
+                        dialog.dismiss();
+                    })
+                    .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                    .show();
+            return true;
+        } else if (itemId == R.id.action_backup || itemId == R.id.action_restore) {
+            Uri initialUri = Uri.parse(Environment.getExternalStorageDirectory().toURI().toString());
+            (itemId == R.id.action_backup ? mActivityResultBackup : mActivityResultRestore).launch(initialUri);
+            return true;
         } else if (itemId == R.id.action_log) {
             AlertDialog.Builder builder = new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme)).setTitle("Last log message");
             builder.setMessage(mLastLogMessage);
             builder.setPositiveButton("OK", (dialog, which) -> dialog.dismiss());
             builder.show();
             return true;
+        } else if (itemId == R.id.action_diagnostics) {
+            AlertDialog.Builder builder = new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme)).setTitle("Diagnostics");
+            if (!Perf.sEnabled)
+                builder.setMessage("Timings aren't being recorded.");
+            else if (Perf.isEmpty())
+                builder.setMessage("Nothing has been timed yet.");
+            else
+                builder.setMessage(Perf.report());
+            builder.setPositiveButton("OK", (dialog, which) -> dialog.dismiss());
+            builder.setNegativeButton(Perf.sEnabled ? "Stop recording" : "Record timings", (dialog, which) -> {
+                Perf.sEnabled = !Perf.sEnabled;
+                Perf.reset();
+                getPreferences(MODE_PRIVATE).edit().putBoolean("diagnostics", Perf.sEnabled).apply();
+                dialog.dismiss();
+            });
+            if (Perf.sEnabled && !Perf.isEmpty())
+                builder.setNeutralButton("Export", (dialog, which) -> {
+                    mActivityResultDiagnostics.launch("diagnostics.txt");
+                    dialog.dismiss();
+                });
+            builder.show();
+            return true;
         } else if (itemId == R.id.action_dark_theme) {
             boolean isDark = !item.isChecked();
             mAppTheme = isDark ? R.style.AppThemeDark : R.style.AppThemeLight;
@@ -548,11 +762,77 @@ public class MainActivity extends AppCompatActivity {
                 }
             });
             return false;
+        } else if (itemId == R.id.action_generate_batch) {
+            if (mLayoutGenerateBinding == null) {
+                Toast.makeText(this, "The Generate tab isn't ready yet, try again in a moment.", Toast.LENGTH_LONG).show();
+                return true;
+            }
+            if (!mLayoutGenerateBinding.checkBoxGeneratePassphrase.isChecked() && !newGenerator().isSatisfiable()) {
+                Toast.makeText(this, "The settings on the Generate tab can't be satisfied!", Toast.LENGTH_LONG).show();
+                return true;
+            }
+            EditText editText = new EditText(this);
+            editText.setInputType(InputType.TYPE_CLASS_NUMBER);
+            new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                    .setTitle("Generate passwords")
+                    .setMessage("Number of passwords to generate with the settings on the Generate tab:")
+                    .setView(editText)
+                    .setPositiveButton("Generate", (dialog, which) -> {
+                        try {
+                            mBatchCount = Integer.parseInt(editText.getText().toString());
+                        } catch (NumberFormatException nfe) {
+                            mBatchCount = 0;
+                        }
+                        if (mBatchCount > 0)
+                            mActivityResultGenerateBatch.launch("passwords.txt");
+                        dialog.dismiss();
+                    })
+                    .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                    .show();
+            return true;
+        } else if (itemId == R.id.action_change_master_password) {
+            showRekeyDialog();
+            return true;
+        } else if (itemId == R.id.action_audit) {
+            View dialogView = getLayoutInflater().inflate(R.layout.alertdialog_audit, null);
+            EditText masterPassword = dialogView.findViewById(R.id.editText_audit_masterPassword);
+            CheckBox legacy = dialogView.findViewById(R.id.checkBox_audit_legacy);
+            new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                    .setTitle("Audit passwords")
+                    .setMessage("Finds passwords used under more than one name, and weak ones.")
+                    .setView(dialogView)
+                    .setPositiveButton("Audit", (dialog, which) -> {
+                        if (masterPassword.getText().length() == 0) {
+                            Toast.makeText(this, "Empty password field!", Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        final char[] password = new char[masterPassword.getText().length()];
+                        masterPassword.getText().getChars(0, password.length, password, 0);
+                        audit(password, legacy.isChecked());
+                        dialog.dismiss();
+                    })
+                    .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                    .show();
+            return true;
+        } else if (itemId == R.id.action_single_file_vault) {
+            final boolean singleFile = !item.isChecked();
+            // Converts the process-wide store in place, so every component sees the new format at once
+            final TrackedStore store = mStore;
+            mStorageExecutor.submit(() -> {
+                store.convert(singleFile);
+                return singleFile;
+            }, converted -> {
+                mSingleFileVault = singleFile;
+                getPreferences(MODE_PRIVATE).edit().putBoolean("single_file_vault", singleFile).apply();
+            }, ioe -> Toast.makeText(this, "Couldn't convert passwords: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     void setConfirmPasswordsVisible(boolean visible) {
+        if (mLayoutNewBinding == null)
+            return;
         ConstraintSet constraints = new ConstraintSet();
         constraints.clone(mLayoutNewBinding.constrainLayout);
         if (visible) {
@@ -590,50 +870,609 @@ public class MainActivity extends AppCompatActivity {
         final int state = show ?
                 EditorInfo.TYPE_CLASS_TEXT | EditorInfo.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD :
                 EditorInfo.TYPE_CLASS_TEXT | EditorInfo.TYPE_TEXT_VARIATION_PASSWORD;
-        mLayoutNewBinding.editTextNewPasswordToStore.setInputType(state);
-        mLayoutNewBinding.editTextNewPasswordToStoreConfirm.setInputType(state);
-        mLayoutNewBinding.editTextNewMasterPassword.setInputType(state);
-        mLayoutNewBinding.editTextNewMasterPasswordConfirm.setInputType(state);
-        mLayoutReadBinding.editTextReadMasterPassword.setInputType(state);
+        if (mLayoutNewBinding != null) {
+            mLayoutNewBinding.editTextNewPasswordToStore.setInputType(state);
+            mLayoutNewBinding.editTextNewPasswordToStoreConfirm.setInputType(state);
+            mLayoutNewBinding.editTextNewMasterPassword.setInputType(state);
+            mLayoutNewBinding.editTextNewMasterPasswordConfirm.setInputType(state);
+        }
+        if (mLayoutReadBinding != null)
+            mLayoutReadBinding.editTextReadMasterPassword.setInputType(state);
     }
 
     void copy(File source, Uri destination) throws IOException {
-        InputStream is = new FileInputStream(source);
-        OutputStream os = getContentResolver().openOutputStream(destination);
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = is.read(buffer)) > 0)
-            os.write(buffer, 0, length);
-        is.close();
-        os.close();
+        try (ParcelFileDescriptor descriptor = openFileDescriptor(destination, "wt")) {
+            if (descriptor != null) {
+                try (FileChannel in = new FileInputStream(source).getChannel();
+                     FileChannel out = new FileOutputStream(descriptor.getFileDescriptor()).getChannel()) {
+                    Transfer.copy(in, out);
+                }
+                return;
+            }
+        }
+        try (InputStream is = new FileInputStream(source);
+             OutputStream os = getContentResolver().openOutputStream(destination, "wt")) {
+            if (os == null)
+                throw new IOException("Can't write " + destination);
+            Transfer.copy(is, os);
+        }
+    }
+
+    // A descriptor usable for FileChannel transfers, or null if the provider only offers a stream (pipe, socket, no support)
+    ParcelFileDescriptor openFileDescriptor(Uri uri, String mode) {
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = getContentResolver().openFileDescriptor(uri, mode);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        if (descriptor != null && descriptor.getStatSize() < 0) {
+            try {
+                descriptor.close();
+            } catch (IOException ioe) {
+
+            }
+            return null;
+        }
+        return descriptor;
+    }
+
+    // Called on a storage thread
+    String displayName(Uri source) {
+        if (!Objects.equals(source.getScheme(), "content"))
+            return source.getLastPathSegment();
+        Cursor cursor = getContentResolver().query(source, new String[] { OpenableColumns.DISPLAY_NAME }, null, null, null);
+        if (cursor == null)
+            return "";
+        try {
+            return cursor.moveToFirst() ? cursor.getString(cursor.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME)) : "";
+        } finally {
+            cursor.close();
+        }
+    }
+
+    void showProgress(int done, int total) {
+        mActivityMainBinding.progressIndicator.setMax(total);
+        mActivityMainBinding.progressIndicator.setProgressCompat(done, true);
+        mActivityMainBinding.progressIndicator.setVisibility(View.VISIBLE);
+    }
+
+    void hideProgress() {
+        mActivityMainBinding.progressIndicator.setVisibility(View.GONE);
+    }
+
+    // Brings the catalog (and the list) in line with the store, in case it changed behind the catalog's back
+    void verifyCatalog() {
+        final List<String> cataloged = mPasswordNames.snapshot().names();
+        mStorageExecutor.submit(() -> mStore.list(), storedNames -> {
+            Set<String> stored = new HashSet<>(storedNames);
+            boolean changed = false;
+            boolean metadataDropped = false;
+            for (String name : cataloged) {
+                if (!stored.contains(name)) {
+                    changed |= mPasswordNames.remove(name);
+                    metadataDropped |= mMetadata != null && mMetadata.remove(name) != null;
+                }
+            }
+            if (metadataDropped)
+                metadataChanged();
+            final int size = mPasswordNames.size();
+            mPasswordNames.addAll(storedNames);
+            if (changed || mPasswordNames.size() != size) {
+                // Whatever changed the store behind the catalog's back didn't go through a TrackedStore either
+                AutofillIndex.invalidate();
+                namesChanged();
+            }
+        }, ioe -> {});
+    }
+
+    // Called after every change to mPasswordNames: updates the list and persists the catalog
+    void namesChanged() {
+        mAdapter.notifyNamesChanged();
+        saveCatalog();
+    }
+
+    // Moves the metadata of name over to newName, or drops it if newName is null
+    void removeMetadata(String name, String newName) {
+        if (mMetadata == null || !mMetadata.containsKey(name))
+            return;
+        final EntryMetadata metadata = mMetadata.remove(name);
+        if (newName != null)
+            mMetadata.put(newName, metadata);
+        metadataChanged();
     }
 
-    void copy(Uri source, File destination) throws IOException {
-        InputStream is = getContentResolver().openInputStream(source);
-        OutputStream os = new FileOutputStream(destination);
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = is.read(buffer)) > 0)
-            os.write(buffer, 0, length);
-        is.close();
-        os.close();
+    // Called after every change to mMetadata: re-applies the tag filter and persists the metadata
+    void metadataChanged() {
+        final Map<String, EntryMetadata> metadata = new HashMap<>(mMetadata);
+        mAdapter.setMetadata(metadata);
+        mStorageExecutor.persistLatest("metadata", () -> {
+            mMetadataFile.write(metadata);
+            return null;
+        }, ioe -> Toast.makeText(this, "Couldn't save the details: " + ioe.getMessage(), Toast.LENGTH_LONG).show());
     }
 
-    void sumUpImportExport(int filesToCopy, int filesCopied, int unknown, int skipped, String copyDirection) {
-        Collections.sort(mPasswordNames, String.CASE_INSENSITIVE_ORDER);
-        mAdapter.notifyDataSetChanged();
+    void showDetails(String name) {
+        if (mMetadata == null) {
+            Toast.makeText(this, "Details aren't available, they couldn't be read.", Toast.LENGTH_LONG).show();
+            return;
+        }
+        View dialogView = getLayoutInflater().inflate(R.layout.alertdialog_details, null);
+        EditText username = dialogView.findViewById(R.id.editText_details_username);
+        EditText url = dialogView.findViewById(R.id.editText_details_url);
+        EditText tags = dialogView.findViewById(R.id.editText_details_tags);
+        EditText notes = dialogView.findViewById(R.id.editText_details_notes);
+        final EntryMetadata current = mMetadata.get(name);
+        if (current != null) {
+            username.setText(current.username);
+            url.setText(current.url);
+            tags.setText(TextUtils.join(", ", current.tags));
+            notes.setText(current.notes);
+        }
+        new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                .setTitle(name)
+                .setView(dialogView)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    if (notes.getText().length() > EntryMetadata.MAX_NOTES_LENGTH) {
+                        Toast.makeText(this, "Notes can be at most " + EntryMetadata.MAX_NOTES_LENGTH + " characters long!", Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    final EntryMetadata metadata = new EntryMetadata(username.getText().toString().trim(), url.getText().toString().trim(),
+                            notes.getText().toString(), EntryMetadata.parseTags(tags.getText().toString()));
+                    if (metadata.isEmpty())
+                        mMetadata.remove(name);
+                    else
+                        mMetadata.put(name, metadata);
+                    metadataChanged();
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    void saveCatalog() {
+        final List<String> names = mPasswordNames.snapshot().names();
+        mStorageExecutor.persistLatest("catalog", () -> {
+            mCatalogFile.write(names);
+            return null;
+        }, ioe -> {});
+    }
+
+    PasswordGenerator newGenerator() {
+        return new PasswordGenerator(mLayoutGenerateBinding.numberPickerGenerateLength.getValue(),
+                mLayoutGenerateBinding.numberPickerGenerateLettersMin.getValue(), mLayoutGenerateBinding.numberPickerGenerateLettersMax.getValue(),
+                mLayoutGenerateBinding.numberPickerGenerateNumbersMin.getValue(), mLayoutGenerateBinding.numberPickerGenerateNumbersMax.getValue(),
+                mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.getValue(), mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.getValue());
+    }
+
+    PassphraseGenerator newPassphraseGenerator() throws IOException {
+        return new PassphraseGenerator(wordList(), mLayoutGenerateBinding.numberPickerGenerateWords.getValue(),
+                mLayoutGenerateBinding.editTextGenerateSeparator.getText().toString(), mLayoutGenerateBinding.checkBoxGenerateCapitalize.isChecked());
+    }
+
+    // Mapped on first use and kept, the mapping stays valid after the descriptor is closed
+    synchronized WordList wordList() throws IOException {
+        if (mWordList == null) {
+            try (AssetFileDescriptor descriptor = getAssets().openFd(WordList.ASSET); FileInputStream is = descriptor.createInputStream()) {
+                mWordList = WordList.map(is.getChannel(), descriptor.getStartOffset(), descriptor.getLength());
+            }
+        }
+        return mWordList;
+    }
+
+    // Calibrated once per installation, on a worker thread
+    synchronized int kdfIterations() throws IOException {
+        if (mKdfIterations == 0) {
+            mKdfIterations = PasswordCipher.calibrate();
+            getPreferences(MODE_PRIVATE).edit().putInt("kdf_iterations", mKdfIterations).apply();
+        }
+        return mKdfIterations;
+    }
+
+    // Runs on a worker thread: derives the key for masterPassword unless it's cached, then encrypts password with it
+    byte[] encrypt(byte[] masterPassword, CharSequence password) throws IOException {
+        final int iterations = kdfIterations();
+        final byte[] fingerprint = mKeyCache.fingerprint(masterPassword, mKdfSalt, iterations);
+        byte[] key = mKeyCache.get(fingerprint);
+        if (key == null)
+            mKeyCache.put(fingerprint, key = PasswordCipher.deriveKey(masterPassword, mKdfSalt, iterations));
+        // Our own copy, the cache may wipe its key while this runs
+        try {
+            return PasswordCipher.encrypt(key, mKdfSalt, iterations, password);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    void showRekeyDialog() {
+        View dialogView = getLayoutInflater().inflate(R.layout.alertdialog_rekey, null);
+        EditText oldPassword = dialogView.findViewById(R.id.editText_rekey_oldMasterPassword);
+        EditText newPassword = dialogView.findViewById(R.id.editText_rekey_newMasterPassword);
+        EditText newPasswordConfirm = dialogView.findViewById(R.id.editText_rekey_newMasterPasswordConfirm);
+        CheckBox legacy = dialogView.findViewById(R.id.checkBox_rekey_legacy);
+        new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                .setTitle("Change master password")
+                .setView(dialogView)
+                .setPositiveButton("Change", (dialog, which) -> {
+                    if (oldPassword.getText().length() == 0 || newPassword.getText().length() == 0) {
+                        Toast.makeText(this, "Empty password field!", Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    if (!SecretBuffer.contentEquals(newPassword.getText(), newPasswordConfirm.getText())) {
+                        Toast.makeText(this, "Passwords don't match!", Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    if (SecretBuffer.contentEquals(oldPassword.getText(), newPassword.getText())) {
+                        Toast.makeText(this, "The new master password is the same as the current one!", Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    final char[] from = new char[oldPassword.getText().length()], to = new char[newPassword.getText().length()];
+                    oldPassword.getText().getChars(0, from.length, from, 0);
+                    newPassword.getText().getChars(0, to.length, to, 0);
+                    rekey(from, to, legacy.isChecked());
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    // Re-encrypts every entry under the new master password on the worker pool, see Rekey
+    void rekey(char[] oldPassword, char[] newPassword, boolean legacy) {
+        final List<String> names = mPasswordNames.snapshot().names();
+        final PasswordStore store = mStore;
+        mStorageExecutor.submit(() -> {
+            final int iterations;
+            try {
+                iterations = kdfIterations();
+            } catch (IOException ioe) {
+                Arrays.fill(oldPassword, '\0');
+                Arrays.fill(newPassword, '\0');
+                throw ioe;
+            }
+            Rekey rekey = new Rekey(getFilesDir(), store, oldPassword, newPassword, mKdfSalt, iterations, legacy);
+            try {
+                rekey.open();
+            } catch (IOException ioe) {
+                rekey.close();
+                throw ioe;
+            }
+            return rekey;
+        }, rekey -> {
+            showProgress(0, names.size());
+            mStorageExecutor.forEach(names.size(), i -> rekey.process(names.get(i)), done -> showProgress(done, names.size()), () -> {
+                hideProgress();
+                mStorageExecutor.submit(() -> {
+                    rekey.finish();
+                    return rekey;
+                }, finished -> sumUpRekey(finished, null), ioe -> sumUpRekey(rekey, ioe));
+            });
+        }, ioe -> {
+            Toast.makeText(this, "Couldn't change the master password: " + ioe.getMessage(), Toast.LENGTH_LONG).show();
+            if (ioe instanceof Rekey.DifferentPasswordException)
+                offerInterruptedRekey(((Rekey.DifferentPasswordException) ioe).journaled);
+        });
+    }
+
+    // Passwords the interrupted change already moved only open with its new master password, so it's finished with that or abandoned
+    void offerInterruptedRekey(int journaled) {
+        if (journaled == 0)
+            return;
+        new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                .setTitle("Interrupted master password change")
+                .setMessage(journaled + " password(s) already use the new master password of an interrupted change. Change it again with the same new master password to finish, or abandon the change.")
+                .setPositiveButton("Finish", (dialog, which) -> {
+                    showRekeyDialog();
+                    dialog.dismiss();
+                })
+                .setNeutralButton("Abandon", (dialog, which) -> {
+                    new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                            .setTitle("Abandon the change?")
+                            .setMessage("The " + journaled + " password(s) already changed keep the new master password, you'll need it to open them.")
+                            .setPositiveButton("Abandon", (confirm, button) -> {
+                                mStorageExecutor.submit(() -> {
+                                    Rekey.discard(getFilesDir());
+                                    return journaled;
+                                }, discarded -> Toast.makeText(this, "Abandoned the interrupted master password change.", Toast.LENGTH_LONG).show(),
+                                        ioe -> Toast.makeText(this, ioe.getMessage(), Toast.LENGTH_LONG).show());
+                                confirm.dismiss();
+                            })
+                            .setNegativeButton("Cancel", (confirm, button) -> confirm.dismiss())
+                            .show();
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Later", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    void sumUpRekey(Rekey rekey, IOException finishError) {
+        StringBuilder messageBuilder = new StringBuilder();
+        messageBuilder.append(rekey.rekeyed.get()).append(" password(s) now use the new master password.");
+        if (rekey.skipped.get() > 0)
+            messageBuilder.append(" ").append(rekey.skipped.get()).append(" didn't open with the current master password and were left alone.");
+        if (rekey.failed.get() > 0)
+            messageBuilder.append(" ").append(rekey.failed.get()).append(" couldn't be changed, run it again to retry them.");
+        if (finishError != null)
+            messageBuilder.append(" ").append(finishError.getMessage());
+        mLastLogMessage = messageBuilder.toString();
+        Toast.makeText(this, mLastLogMessage, Toast.LENGTH_LONG).show();
+    }
+
+    // Decrypts every entry on the worker pool and reports reused and weak passwords, see Audit
+    void audit(char[] password, boolean legacy) {
+        final List<String> names = mPasswordNames.snapshot().names();
+        final Audit audit = new Audit(mStore, password, legacy);
+        final long start = Perf.start("audit");
+        showProgress(0, names.size());
+        // The secrets are wiped on the worker, also when the activity goes away half way and the results are dropped
+        mStorageExecutor.forEach(names.size(), i -> audit.process(names.get(i)), done -> showProgress(done, names.size()), () -> {
+            Perf.stop("audit", start);
+            hideProgress();
+            sumUpAudit(audit);
+        }, audit::close);
+    }
+
+    void sumUpAudit(Audit audit) {
+        final int maxListed = 20;
+        final List<List<String>> reused = audit.reused();
+        final Map<String, String> weak = audit.weak();
+        StringBuilder messageBuilder = new StringBuilder();
+        messageBuilder.append(audit.audited.get()).append(" password(s) audited.");
+        if (audit.skipped.get() > 0)
+            messageBuilder.append(" ").append(audit.skipped.get()).append(" didn't open with the master password and were left out.");
+        if (audit.failed.get() > 0)
+            messageBuilder.append(" ").append(audit.failed.get()).append(" couldn't be read.");
+
+        messageBuilder.append("\n\n");
+        if (reused.isEmpty())
+            messageBuilder.append("No password is used more than once.");
+        else
+            messageBuilder.append(reused.size()).append(" password(s) are used under more than one name:");
+        for (int i = 0; i < reused.size() && i < maxListed; ++i)
+            messageBuilder.append("\n- ").append(TextUtils.join(", ", reused.get(i)));
+        if (reused.size() > maxListed)
+            messageBuilder.append("\n... and ").append(reused.size() - maxListed).append(" more");
+
+        messageBuilder.append("\n\n");
+        if (weak.isEmpty())
+            messageBuilder.append("No weak passwords found.");
+        else
+            messageBuilder.append(weak.size()).append(" weak password(s):");
+        int listed = 0;
+        for (Map.Entry<String, String> entry : weak.entrySet()) {
+            if (listed++ == maxListed) {
+                messageBuilder.append("\n... and ").append(weak.size() - maxListed).append(" more");
+                break;
+            }
+            messageBuilder.append("\n- ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+
+        mLastLogMessage = messageBuilder.toString();
+        new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
+                .setTitle("Audit")
+                .setMessage(mLastLogMessage)
+                .setPositiveButton("OK", (dialog, which) -> dialog.dismiss())
+                .show();
+    }
+
+    // Called on a storage thread
+    DocumentFile openExportDirectory(Uri treeUri) throws IOException {
+        DocumentFile root = DocumentFile.fromTreeUri(getApplicationContext(), treeUri);
+        if (root == null)
+            throw new IOException("Can't open the selected directory.");
+
+        DocumentFile destinationDir = root.findFile("passwords");
+        if (destinationDir == null) {
+            root.createDirectory("passwords");
+            destinationDir = root.findFile("passwords");
+        } else if (destinationDir.isFile()) {
+            throw new IOException("Can't export to " + destinationDir.getName() + ": it's an existing file.");
+        }
+        if (destinationDir == null)
+            throw new IOException("Can't create the passwords directory.");
+        return destinationDir;
+    }
+
+    /*
+     * Called on a storage thread. Writes what changed since the last backup as the next increment of the chain in the
+     * passwords directory, or a new base if the chain can't be continued there; a new base replaces the older chains.
+     */
+    String backup(Uri treeUri, PasswordStore store) throws IOException {
+        final DocumentFile destinationDir = openExportDirectory(treeUri);
+        final DocumentIndex existing = new DocumentIndex(getContentResolver(), treeUri, destinationDir.getUri());
+        final ChangeLog.Snapshot snapshot = mChangeLog.snapshot();
+        final boolean base = snapshot.needsBase() || existing.get(ChangeLog.backupName(snapshot.chain, snapshot.sequence - 1)) == null;
+        final long chain = base ? System.currentTimeMillis() : snapshot.chain;
+        final int sequence = base ? 0 : snapshot.sequence;
+        List<String> written = new ArrayList<>(), deleted = new ArrayList<>();
+        if (base)
+            written = store.list();
+        else if (snapshot.changes.isEmpty())
+            return "Nothing changed since the last backup.";
+        else
+            for (String name : snapshot.changes.keySet())
+                (store.contains(name) ? written : deleted).add(name);
+
+        final String filename = ChangeLog.backupName(chain, sequence);
+        final DocumentFile created = destinationDir.createFile(Archive.MIME_TYPE, filename);
+        if (created == null)
+            throw new IOException("Can't create " + filename);
+        try (OutputStream os = getContentResolver().openOutputStream(created.getUri(), "wt")) {
+            if (os == null)
+                throw new IOException("Can't write " + filename);
+            Archive.write(os, store, written, deleted, true);
+        }
+        mChangeLog.exported(snapshot, chain, sequence);
+        if (!base)
+            return "Backup " + sequence + ": " + written.size() + " password(s) saved, " + deleted.size() + " deleted.";
+        for (String old : ChangeLog.otherChains(existing.displayNames(), chain))
+            DocumentsContract.deleteDocument(getContentResolver(), existing.get(old).uri);
+        return "Full backup of " + written.size() + " password(s).";
+    }
+
+    /*
+     * Called on a storage thread. Replays the base and the increments of the newest chain in the passwords directory,
+     * returns the number of backup files and the updates that bring the store in line with the last of them.
+     */
+    Pair<Integer, StoreBatch> restore(Uri treeUri, PasswordStore store) throws IOException {
+        final DocumentFile sourceDir = openExportDirectory(treeUri);
+        final DocumentIndex existing = new DocumentIndex(getContentResolver(), treeUri, sourceDir.getUri());
+        final long chain = ChangeLog.newestChain(existing.displayNames());
+        if (chain < 0)
+            throw new IOException("No backup in " + sourceDir.getName());
+        Map<String, byte[]> entries = new HashMap<>();
+        Set<String> deleted = new HashSet<>();
+        int sequence = 0;
+        DocumentIndex.Document document;
+        while ((document = existing.get(ChangeLog.backupName(chain, sequence))) != null) {
+            try (InputStream is = getContentResolver().openInputStream(document.uri)) {
+                if (is == null)
+                    throw new IOException("Can't read " + ChangeLog.backupName(chain, sequence));
+                final Archive.Contents contents = Archive.read(is);
+                for (String name : contents.deleted) {
+                    entries.remove(name);
+                    deleted.add(name);
+                }
+                for (Map.Entry<String, byte[]> entry : contents.entries.entrySet()) {
+                    deleted.remove(entry.getKey());
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            ++sequence;
+        }
+        // Only what differs, so the restore doesn't show up as a change of every password in the next backup
+        StoreBatch batch = new StoreBatch();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+            if (!store.contains(entry.getKey()) || !Arrays.equals(store.read(entry.getKey()), entry.getValue()))
+                batch.write(entry.getKey(), entry.getValue());
+        for (String name : deleted)
+            if (store.contains(name))
+                batch.delete(name);
+        return new Pair<>(sequence, batch);
+    }
+
+    void confirmOverwrite(List<String> names, OverwriteChoice choice) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme)).setTitle("Confirm overwrite file");
+        View dialogView = getLayoutInflater().inflate(R.layout.alertdialog_mass_overwrite, null);
+        LinearLayout linearLayout = dialogView.findViewById(R.id.linearLayout_filesToOverwrite);
+        dialogView.findViewById(R.id.button_checkAll).setOnClickListener(v -> {
+            for (int i = 0; i < linearLayout.getChildCount(); ++i) {
+                View child = linearLayout.getChildAt(i);
+                if (child instanceof CheckBox)
+                    ((CheckBox) child).setChecked(true);
+            }
+        });
+        dialogView.findViewById(R.id.button_uncheckAll).setOnClickListener(v -> {
+            for (int i = 0; i < linearLayout.getChildCount(); ++i) {
+                View child = linearLayout.getChildAt(i);
+                if (child instanceof CheckBox)
+                    ((CheckBox) child).setChecked(false);
+            }
+        });
+
+        for (int i = 0; i < names.size(); ++i) {
+            CheckBox checkBox = new CheckBox(getApplicationContext());
+            checkBox.setText(names.get(i));
+            checkBox.setTag(i);
+            linearLayout.addView(checkBox);
+        }
+
+        final boolean[] overwrite = new boolean[names.size()];
+        builder.setView(dialogView);
+        builder.setPositiveButton("OK", (dialog, which) -> {
+            for (int i = 0; i < linearLayout.getChildCount(); ++i) {
+                View child = linearLayout.getChildAt(i);
+                if (child instanceof CheckBox)
+                    overwrite[(Integer) child.getTag()] = ((CheckBox) child).isChecked();
+            }
+            dialog.dismiss();
+        });
+        builder.setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss());
+        builder.setOnDismissListener(dialog -> choice.onChosen(overwrite));
+        builder.show();
+    }
+
+    void copy(String name, Uri destination) throws IOException {
+        final long start = Perf.start("export.copy");
+        try {
+            File source = mStore.file(name);
+            if (source != null) {
+                copy(source, destination);
+                return;
+            }
+            try (OutputStream os = getContentResolver().openOutputStream(destination, "wt")) {
+                if (os == null)
+                    throw new IOException("Can't write " + destination);
+                os.write(mStore.read(name));
+            }
+        } finally {
+            Perf.stop("export.copy", start);
+        }
+    }
+
+    // Imported files are tiny, they're read whole and committed together
+    byte[] read(Uri source) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream is = getContentResolver().openInputStream(source)) {
+            if (is == null)
+                throw new IOException("Can't read " + source);
+            Transfer.copy(is, content);
+        }
+        return content.toByteArray();
+    }
+
+    // Called from the import workers: new names go straight into the batch, existing ones wait for confirmation
+    void importEntry(String name, byte[] content, StoreBatch batch, List<String> imported, List<Pair<String, byte[]>> overwriteTasks) {
+        if (mStore.contains(name)) {
+            overwriteTasks.add(new Pair<>(name, content));
+            return;
+        }
+        batch.write(name, content);
+        imported.add(name);
+    }
+
+    // Commits the files read by an import in one store transaction, then lists the new names
+    void commitImport(StoreBatch batch, List<String> names, AtomicInteger filesCopied, Runnable onDone) {
+        final PasswordStore store = mStore;
+        mStorageExecutor.submit(() -> {
+            final long start = Perf.start("import.commit");
+            try {
+                store.commit(batch);
+            } finally {
+                Perf.stop("import.commit", start);
+            }
+            return names.size();
+        }, committed -> {
+            filesCopied.addAndGet(committed);
+            final int size = mPasswordNames.size();
+            mPasswordNames.addAll(names);
+            if (mPasswordNames.size() != size)
+                namesChanged();
+            onDone.run();
+        }, ioe -> {
+            Toast.makeText(this, "Couldn't save the imported passwords: " + ioe.getMessage(), Toast.LENGTH_LONG).show();
+            onDone.run();
+        });
+    }
+
+    void sumUpImportExport(int filesToCopy, int filesCopied, int unknown, int skipped, int unchanged, String copyDirection) {
+        namesChanged();
         StringBuilder messageBuilder = new StringBuilder();
         if (filesCopied > 0)
             messageBuilder.append("Successfully ").append(copyDirection).append("ed ").append(filesCopied).append(" password(s).\n");
         if (skipped > 0)
             messageBuilder.append("Chose not to ").append(copyDirection).append(" ").append(skipped).append(" password(s).\n");
+        if (unchanged > 0)
+            messageBuilder.append(unchanged).append(" password(s) already up to date.\n");
         if (unknown > 0)
             messageBuilder.append(" ").append(unknown).append(" file(s) with unknown type skipped.\n");
-        int failed = filesToCopy - filesCopied - unknown - skipped;
+        int failed = filesToCopy - filesCopied - unknown - skipped - unchanged;
         if (failed > 0)
             messageBuilder.append(" ").append(failed).append(" file(s) couldn't be ").append(copyDirection).append("ed.\n");
         final String message = messageBuilder.toString().trim();
         mLastLogMessage = message;
+        if (Transfer.bytesTransferred() > 0)
+            mLastLogMessage += "\nThroughput: " + Transfer.bytesTransferred() + " bytes at " + Transfer.bytesPerSecond() / 1024 + " KiB/s.";
+        Transfer.resetStatistics();
         Toast.makeText(this, message, Toast.LENGTH_LONG).show();
     }
 
@@ -641,7 +1480,9 @@ public class MainActivity extends AppCompatActivity {
 
         Bundle mSavedInstanceState;
         char[] mCodedPassword = new char[0];
-        String mDecodedPasswordCache = "", mGeneratedPasswordCache = "";
+        PasswordCipher.Entry mEncryptedEntry;
+        final ShiftCodec mDecoder = new ShiftCodec();
+        final SecretBuffer mGeneratedPassword = SecretBuffer.obtain(32);
         final TextWatcher mDisableManualEditingDecode = new TextWatcher() {
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -655,8 +1496,8 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void afterTextChanged(Editable s) {
-                if (!s.toString().equals(mDecodedPasswordCache))
-                    s.replace(0, s.length(), mDecodedPasswordCache);
+                if (!mDecoder.contentEquals(s))
+                    s.replace(0, s.length(), mDecoder.buffer());
             }
         };
         final TextWatcher mDisableManualEditingGenerate = new TextWatcher() {
@@ -672,120 +1513,59 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void afterTextChanged(Editable s) {
-                if (!s.toString().equals(mGeneratedPasswordCache))
-                    s.replace(0, s.length(), mGeneratedPasswordCache);
+                if (!mGeneratedPassword.contentEquals(s))
+                    s.replace(0, s.length(), mGeneratedPassword);
             }
         };
 
         void generatePassword() {
-            int letterCount = mLayoutGenerateBinding.numberPickerGenerateLettersMin.getValue();
-            int numberCount = mLayoutGenerateBinding.numberPickerGenerateNumbersMin.getValue();
-            int symbolCount = mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.getValue();
-            int randomCharacters = mLayoutGenerateBinding.numberPickerGenerateLength.getValue()
-                    - letterCount
-                    - numberCount
-                    - symbolCount;
-
-            final int maxLetters = mLayoutGenerateBinding.numberPickerGenerateLettersMax.getValue();
-            final int maxNumbers = mLayoutGenerateBinding.numberPickerGenerateNumbersMax.getValue();
-            final int maxSymbols = mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.getValue();
-
-            if (maxLetters + maxNumbers + maxSymbols < mLayoutGenerateBinding.numberPickerGenerateLength.getValue() ||
-                    randomCharacters < 0 ||
-                    letterCount > maxLetters ||
-                    numberCount > maxNumbers ||
-                    symbolCount > maxSymbols ||
-                    maxLetters + maxNumbers + maxSymbols == 0) {
-                mLayoutGenerateBinding.editTextGenerateGeneratedPassword.removeTextChangedListener(mDisableManualEditingGenerate);
-                mLayoutGenerateBinding.editTextGenerateGeneratedPassword.setText(mGeneratedPasswordCache = "");
-                mLayoutGenerateBinding.editTextGenerateGeneratedPassword.addTextChangedListener(mDisableManualEditingGenerate);
+            if (mLayoutGenerateBinding.checkBoxGeneratePassphrase.isChecked()) {
+                generatePassphrase();
                 return;
             }
-
-            Random r = new Random();
-            while (randomCharacters > 0) {
-                int characterTypes = 0;
-                final boolean[] includedTypesMask = new boolean[3];
-                final int letterId = 0;
-                final int numberId = 1;
-                final int symbolId = 2;
-
-                includedTypesMask[letterId] = (letterCount < maxLetters);
-                if (includedTypesMask[letterId])
-                    ++characterTypes;
-
-                includedTypesMask[numberId] = (numberCount < maxNumbers);
-                if (includedTypesMask[numberId])
-                    ++characterTypes;
-
-                includedTypesMask[symbolId] = (symbolCount < maxSymbols);
-                if (includedTypesMask[symbolId])
-                    ++characterTypes;
-
-                int characterType = r.nextInt(characterTypes);
-                for (int id = 0; id < 3; ++id) {
-                    if (includedTypesMask[id]) {
-                        if ((characterType == 0)) {
-                            characterType = id;
-                            break;
-                        }
-                        --characterType;
-                    }
-                }
-
-                switch (characterType) {
-                    case letterId: ++letterCount; break;
-                    case numberId: ++numberCount; break;
-                    case symbolId: ++symbolCount; break;
-                    default: break;
-                }
-
-                --randomCharacters;
+            PasswordGenerator generator = newGenerator();
+            mGeneratedPassword.wipe();
+            if (generator.isSatisfiable()) {
+                final char[] generated = new char[generator.length()];
+                generator.generate(generated);
+                mGeneratedPassword.set(generated);
+                Arrays.fill(generated, '\0');
             }
+            showGenerated();
+        }
 
-            /*
-             * Letters: 65-90 (26), 97-122 (26), total: 52
-             * Numbers: 48-57 (10), total: 10
-             * Symbols: 33-47 (15), 58-64 (7), 91-96 (6), 123-126 (4), total: 32
-             */
-            StringBuilder passwordBuilder = new StringBuilder();
-            for (int i = 0; i < letterCount; ++i) {
-                int character = r.nextInt(52);
-                if (character >= 26) {
-                    passwordBuilder.append((char) (97 + character - 26));
-                } else {
-                    passwordBuilder.append((char) (65 + character));
-                }
-            }
-            for (int i = 0; i < numberCount; ++i) {
-                int character = r.nextInt(10);
-                passwordBuilder.append((char) (48 + character));
-            }
-            for (int i = 0; i < symbolCount; ++i) {
-                int character = r.nextInt(32);
-                if (character >= 15 + 7 + 6) {
-                    passwordBuilder.append((char) (123 + character - (15 + 7 + 6)));
-                } else if (character >= 15 + 7) {
-                    passwordBuilder.append((char) (91 + character - (15 + 7)));
-                } else if (character >= 15) {
-                    passwordBuilder.append((char) (58 + character - 15));
-                } else {
-                    passwordBuilder.append((char) (33 + character ));
-                }
-            }
+        void showGenerated() {
+            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.removeTextChangedListener(mDisableManualEditingGenerate);
+            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.setText(mGeneratedPassword);
+            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.addTextChangedListener(mDisableManualEditingGenerate);
+        }
 
-            for (int i = passwordBuilder.length() - 1; i > 0; --i) {
-                int j = r.nextInt(i + 1);
-                if (i != j) {
-                    char tmp = passwordBuilder.charAt(i);
-                    passwordBuilder.setCharAt(i, passwordBuilder.charAt(j));
-                    passwordBuilder.setCharAt(j, tmp);
-                }
+        void generatePassphrase() {
+            mGeneratedPassword.wipe();
+            try {
+                PassphraseGenerator generator = newPassphraseGenerator();
+                final char[] generated = generator.generate();
+                mGeneratedPassword.set(generated);
+                Arrays.fill(generated, '\0');
+                mLayoutGenerateBinding.textViewGenerateEntropy.setText(String.format(Locale.ROOT, "Entropy: %.1f bits (%d words of %d)",
+                        generator.entropyBits(), mLayoutGenerateBinding.numberPickerGenerateWords.getValue(), wordList().size()));
+            } catch (IOException ioe) {
+                Toast.makeText(MainActivity.this, "Couldn't open the word list: " + ioe.getMessage(), Toast.LENGTH_LONG).show();
             }
+            showGenerated();
+        }
 
-            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.removeTextChangedListener(mDisableManualEditingGenerate);
-            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.setText(mGeneratedPasswordCache = passwordBuilder.toString());
-            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.addTextChangedListener(mDisableManualEditingGenerate);
+        // Passphrases replace the character settings with the word settings
+        void setPassphraseMode(boolean passphrase) {
+            final int characters = passphrase ? View.GONE : View.VISIBLE;
+            mLayoutGenerateBinding.linearLayoutGenerateLength.setVisibility(characters);
+            mLayoutGenerateBinding.linearLayoutGenerateLetters.setVisibility(characters);
+            mLayoutGenerateBinding.linearLayoutGenerateNumbers.setVisibility(characters);
+            mLayoutGenerateBinding.linearLayoutGenerateSymbols.setVisibility(characters);
+            mLayoutGenerateBinding.linearLayoutGeneratePassphrase.setVisibility(passphrase ? View.VISIBLE : View.GONE);
+            mLayoutGenerateBinding.textViewGenerateEntropy.setVisibility(passphrase ? View.VISIBLE : View.GONE);
+            mLayoutGenerateBinding.imageButtonRegeneratePassword.setEnabled(passphrase || mLayoutGenerateBinding.numberPickerGenerateLength.getValue() != 0);
+            generatePassword();
         }
 
         final NumberPicker.OnValueChangeListener mParametersChangedGenerate = (picker, oldVal, newVal) -> generatePassword();
@@ -794,6 +1574,12 @@ public class MainActivity extends AppCompatActivity {
             mSavedInstanceState = savedInstanceState;
         }
 
+        // Wipes the plaintext the adapter holds and hands its buffers back to the pool
+        void release() {
+            mDecoder.close();
+            mGeneratedPassword.close();
+        }
+
         @NonNull
         @Override
         public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -817,31 +1603,28 @@ public class MainActivity extends AppCompatActivity {
                             return;
                         }
                         if (mConfirmPasswords &&
-                            (!mLayoutNewBinding.editTextNewPasswordToStore.getText().toString().equals(mLayoutNewBinding.editTextNewPasswordToStoreConfirm.getText().toString()) ||
-                            !mLayoutNewBinding.editTextNewMasterPassword.getText().toString().equals(mLayoutNewBinding.editTextNewMasterPasswordConfirm.getText().toString()))) {
+                            (!SecretBuffer.contentEquals(mLayoutNewBinding.editTextNewPasswordToStore.getText(), mLayoutNewBinding.editTextNewPasswordToStoreConfirm.getText()) ||
+                            !SecretBuffer.contentEquals(mLayoutNewBinding.editTextNewMasterPassword.getText(), mLayoutNewBinding.editTextNewMasterPasswordConfirm.getText()))) {
                             Toast.makeText(MainActivity.this, "Passwords don't match!", Toast.LENGTH_LONG).show();
                             return;
                         }
-                        String filename = mLayoutNewBinding.editTextNewFilename.getText().toString();
-                        if (!filename.endsWith(".pwd"))
-                            filename += ".pwd";
-                        File passwordFile = new File(getFilesDir(), filename);
-                        if (passwordFile.exists()) {
+                        final String filename = mLayoutNewBinding.editTextNewFilename.getText().toString().replace(".pwd", "");
+                        if (!DirectoryStore.isValidName(filename)) {
+                            Toast.makeText(MainActivity.this, "Invalid filename!", Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        if (mStore.contains(filename)) {
                             new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
                                     .setTitle("Confirm overwrite file")
-                                    .setMessage("A password named " + filename.replace(".pwd", "") + " already exists. Do you want to overwrite it?")
+                                    .setMessage("A password named " + filename + " already exists. Do you want to overwrite it?")
                                     .setPositiveButton("Yes", (dialog, which) -> {
-                                        storePassword(passwordFile);
+                                        storePassword(filename, false);
                                         dialog.dismiss();
                                     })
                                     .setNegativeButton("No", (dialog, which) -> dialog.dismiss())
                                     .show();
                         } else {
-                            storePassword(passwordFile);
-                            mPasswordNames.remove(NO_PASSWORDS);
-                            mPasswordNames.add(filename.replace(".pwd", ""));
-                            Collections.sort(mPasswordNames, String.CASE_INSENSITIVE_ORDER);
-                            mAdapter.notifyDataSetChanged();
+                            storePassword(filename, true);
                         }
                     });
                     mLayoutNewBinding.editTextNewFilename.requestFocus(); // TODO: should this be here?
@@ -858,10 +1641,9 @@ public class MainActivity extends AppCompatActivity {
 
                         @Override
                         public void onTextChanged(CharSequence s, int start, int before, int count) {
-                            String selectedPassword = (String) mLayoutReadBinding.listView.getItemAtPosition(mLayoutReadBinding.listView.getCheckedItemPosition());
-                            mAdapter.getFilter().filter(s, count1 -> {
-                                if (mAdapter.getPosition(selectedPassword) == -1) {
-                                    mLayoutReadBinding.listView.clearChoices();
+                            mAdapter.filter(s, count1 -> {
+                                if (mAdapter.getSelected() != null && mAdapter.getPosition(mAdapter.getSelected()) == -1) {
+                                    mAdapter.clearSelection();
                                     mLayoutReadBinding.editTextReadMasterPassword.setEnabled(false);
                                 }
                             });
@@ -872,59 +1654,73 @@ public class MainActivity extends AppCompatActivity {
 
                         }
                     });
-                    mLayoutReadBinding.listView.setAdapter(mAdapter);
-                    mLayoutReadBinding.listView.setOnItemClickListener(
-                            (par, v, pos, id) -> {
-                                String filename = ((TextView) v).getText().toString();
-                                if (!filename.equals(NO_PASSWORDS)) {
-                                    mLayoutReadBinding.editTextReadMasterPassword.setEnabled(true);
-                                    mLayoutReadBinding.editTextReadMasterPassword.requestFocus();
-                                    ((InputMethodManager)getSystemService(Context.INPUT_METHOD_SERVICE)).showSoftInput(mLayoutReadBinding.editTextReadMasterPassword, InputMethodManager.SHOW_IMPLICIT);
-                                    try {
-                                        BufferedReader reader = new BufferedReader(new FileReader(new File(getFilesDir(), filename + ".pwd")));
-                                        mCodedPassword = reader.readLine().toCharArray();
-                                        reader.close();
-                                        mLayoutReadBinding.editTextReadMasterPassword.setText(mLayoutReadBinding.editTextReadMasterPassword.getText()); // Hopefully triggers afterTextChanged() of TextWatcher
-                                    } catch (IOException ioe) {
-                                        if (!new File(getFilesDir(), filename + ".pwd").exists()) {
-                                            mPasswordNames.remove(filename);
-                                            mAdapter.notifyDataSetChanged();
-                                            Toast.makeText(MainActivity.this, "Oops, the file you were about to read from (" + filename + ") suddenly vanished!", Toast.LENGTH_LONG).show();
-                                        }
+                    mLayoutReadBinding.recyclerView.setAdapter(mAdapter);
+                    mAdapter.setOnNameClickListener(
+                            (v, filename) -> {
+                                mAdapter.setSelected(filename);
+                                mLayoutReadBinding.editTextReadMasterPassword.setEnabled(true);
+                                mLayoutReadBinding.editTextReadMasterPassword.requestFocus();
+                                ((InputMethodManager)getSystemService(Context.INPUT_METHOD_SERVICE)).showSoftInput(mLayoutReadBinding.editTextReadMasterPassword, InputMethodManager.SHOW_IMPLICIT);
+                                Arrays.fill(mCodedPassword, '\0');
+                                mCodedPassword = new char[0];
+                                mEncryptedEntry = null;
+                                mStorageExecutor.cancel("derive");
+                                mStorageExecutor.submitLatest("read", () -> {
+                                    final byte[] content = mStore.read(filename);
+                                    if (PasswordCipher.isEncrypted(content))
+                                        return new Pair<>(PasswordCipher.parse(content), new char[0]);
+                                    return new Pair<PasswordCipher.Entry, char[]>(null, ShiftCodec.readCoded(content));
+                                }, entry -> {
+                                    mEncryptedEntry = entry.first;
+                                    mCodedPassword = entry.second;
+                                    mLayoutReadBinding.editTextReadMasterPassword.setText(mLayoutReadBinding.editTextReadMasterPassword.getText()); // Hopefully triggers afterTextChanged() of TextWatcher
+                                }, ioe -> {
+                                    if (ioe instanceof FileNotFoundException) {
+                                        mPasswordNames.remove(filename);
+                                        namesChanged();
+                                        mLayoutReadBinding.editTextReadMasterPassword.setEnabled(false);
+                                        Toast.makeText(MainActivity.this, "Oops, the file you were about to read from (" + filename + ") suddenly vanished!", Toast.LENGTH_LONG).show();
                                     }
-                                }
+                                });
                             });
-                    mLayoutReadBinding.listView.setOnItemLongClickListener((par, v, pos, id) -> {
+                    mAdapter.setOnNameLongClickListener((v, filename) -> {
                         PopupMenu popupMenu = new PopupMenu(MainActivity.this, v);
                         popupMenu.inflate(R.menu.popup_menu);
                         popupMenu.show();
                         popupMenu.setOnMenuItemClickListener(item -> {
-                            String filename = ((TextView) v).getText().toString();
                             int itemId = item.getItemId();
                             if (itemId == R.id.action_modify) {
-                                mActivityMainBinding.tabLayout.selectTab(mActivityMainBinding.tabLayout.getTabAt(0));
-                                mLayoutNewBinding.editTextNewFilename.setText(filename);
-                                mLayoutNewBinding.editTextNewPasswordToStore.setText("");
-                                mLayoutNewBinding.editTextNewPasswordToStoreConfirm.setText("");
-                                mLayoutNewBinding.editTextNewMasterPassword.setText("");
-                                mLayoutNewBinding.editTextNewMasterPasswordConfirm.setText("");
-                                mLayoutNewBinding.editTextNewPasswordToStore.requestFocus();
+                                fillNewTab(() -> {
+                                    mLayoutNewBinding.editTextNewFilename.setText(filename);
+                                    mLayoutNewBinding.editTextNewPasswordToStore.setText("");
+                                    mLayoutNewBinding.editTextNewPasswordToStoreConfirm.setText("");
+                                    mLayoutNewBinding.editTextNewMasterPassword.setText("");
+                                    mLayoutNewBinding.editTextNewMasterPasswordConfirm.setText("");
+                                    mLayoutNewBinding.editTextNewPasswordToStore.requestFocus();
+                                });
                             } else if (itemId == R.id.action_rename) {
                                 EditText editText = new EditText(MainActivity.this);
                                 new AlertDialog.Builder(new ContextThemeWrapper(MainActivity.this, mAppTheme))
                                         .setTitle("Rename password")
                                         .setView(editText)
                                         .setPositiveButton("Rename", (dialog, which) -> {
-                                            String newName = editText.getText().toString();
-                                            if (!newName.endsWith(".pwd"))
-                                                newName += ".pwd";
-                                            if (new File(getFilesDir(), filename + ".pwd").renameTo(new File(getFilesDir(), newName))) {
-                                                mPasswordNames.remove(filename);
-                                                mPasswordNames.add(newName.replace(".pwd", ""));
-                                                Collections.sort(mPasswordNames, String.CASE_INSENSITIVE_ORDER);
-                                                mAdapter.notifyDataSetChanged();
-                                            } else
-                                                Toast.makeText(MainActivity.this, "Couldn't rename file!", Toast.LENGTH_LONG).show();
+                                            String newName = editText.getText().toString().replace(".pwd", "");
+                                            if (!DirectoryStore.isValidName(newName)) {
+                                                Toast.makeText(MainActivity.this, "Invalid filename!", Toast.LENGTH_LONG).show();
+                                                return;
+                                            }
+                                            mStorageExecutor.submit(() -> mStore.rename(filename, newName), renamed -> {
+                                                if (renamed) {
+                                                    final boolean selected = filename.equals(mAdapter.getSelected());
+                                                    mPasswordNames.remove(filename);
+                                                    mPasswordNames.add(newName);
+                                                    namesChanged();
+                                                    removeMetadata(filename, newName);
+                                                    if (selected)
+                                                        mAdapter.setSelected(newName);
+                                                } else
+                                                    Toast.makeText(MainActivity.this, "Couldn't rename file!", Toast.LENGTH_LONG).show();
+                                            }, ioe -> {});
                                             dialog.dismiss();
                                         })
                                         .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
@@ -935,23 +1731,24 @@ public class MainActivity extends AppCompatActivity {
                                         .setTitle("Confirm delete password")
                                         .setMessage("Do you really want to delete " + filename + "?")
                                         .setPositiveButton("Yes", (dialog, which) -> {
-                                            if (new File(getFilesDir(), filename + ".pwd").delete()) {
-                                                mPasswordNames.remove(filename);
-                                                if (mPasswordNames.isEmpty()) {
-                                                    mPasswordNames.add(NO_PASSWORDS);
-                                                }
-                                                mAdapter.notifyDataSetChanged();
-                                                if (mPasswordNames.contains(NO_PASSWORDS)) {
-                                                    mLayoutReadBinding.listView.setItemChecked(0, false);
-                                                    mLayoutReadBinding.editTextReadMasterPassword.setEnabled(false);
-                                                }
-                                            } else
-                                                Toast.makeText(MainActivity.this, "File could not be deleted!", Toast.LENGTH_LONG).show();
+                                            mStorageExecutor.submit(() -> mStore.delete(filename), deleted -> {
+                                                if (deleted) {
+                                                    mPasswordNames.remove(filename);
+                                                    namesChanged();
+                                                    removeMetadata(filename, null);
+                                                    if (mAdapter.getSelected() == null)
+                                                        mLayoutReadBinding.editTextReadMasterPassword.setEnabled(false);
+                                                } else
+                                                    Toast.makeText(MainActivity.this, "File could not be deleted!", Toast.LENGTH_LONG).show();
+                                            }, ioe -> {});
                                             dialog.dismiss();
                                         })
                                         .setNegativeButton("No", (dialog, which) -> dialog.dismiss())
                                         .show();
                                 return true;
+                            } else if (itemId == R.id.action_details) {
+                                showDetails(filename);
+                                return true;
                             } else if (itemId == R.id.action_export_single) {
                                 mFileToExport = filename;
                                 Uri initialUri = Uri.parse(Environment.getExternalStorageDirectory().toURI().toString());
@@ -960,7 +1757,6 @@ public class MainActivity extends AppCompatActivity {
                             }
                             return false;
                         });
-                        return true;
                     });
                     mLayoutReadBinding.editTextReadMasterPassword.addTextChangedListener(new TextWatcher() {
                         @Override
@@ -976,22 +1772,20 @@ public class MainActivity extends AppCompatActivity {
                         @Override
                         public void afterTextChanged(Editable s) {
                             if (s.length() == 0) {
-                                mLayoutReadBinding.editTextReadDecodedPassword.removeTextChangedListener(mDisableManualEditingDecode);
-                                mLayoutReadBinding.editTextReadDecodedPassword.setText(mDecodedPasswordCache = "");
-                                mLayoutReadBinding.editTextReadDecodedPassword.addTextChangedListener(mDisableManualEditingDecode);
+                                mStorageExecutor.cancel("derive");
+                                mDecoder.wipe();
+                                showDecoded();
+                                return;
+                            }
+                            if (mEncryptedEntry != null) {
+                                decrypt(mEncryptedEntry, s);
                                 return;
                             }
-                            String masterPassword = s.toString();
-                            char[] decodedPassword = mCodedPassword.clone();
-                            while (masterPassword.length() < decodedPassword.length)
-                                masterPassword += masterPassword;
-                            for (int i = 0; i < decodedPassword.length; ++i)
-                                decodedPassword[i] = (char) (decodedPassword[i] - masterPassword.charAt(i) + CHAR_LOWEST < CHAR_LOWEST ?
-                                                             decodedPassword[i] - masterPassword.charAt(i) + CHAR_HIGHEST + 1 :
-                                                             decodedPassword[i] - masterPassword.charAt(i) + CHAR_LOWEST);
-                            mLayoutReadBinding.editTextReadDecodedPassword.removeTextChangedListener(mDisableManualEditingDecode);
-                            mLayoutReadBinding.editTextReadDecodedPassword.setText(mDecodedPasswordCache = String.valueOf(decodedPassword));
-                            mLayoutReadBinding.editTextReadDecodedPassword.addTextChangedListener(mDisableManualEditingDecode);
+                            // The Editable is read in place and the decoder's buffer handed over as is
+                            final long start = Perf.start("decode.shift");
+                            mDecoder.decode(mCodedPassword, s);
+                            Perf.stop("decode.shift", start);
+                            showDecoded();
                         }
                     });
                     mLayoutReadBinding.editTextReadDecodedPassword.addTextChangedListener(mDisableManualEditingDecode);
@@ -1014,6 +1808,8 @@ public class MainActivity extends AppCompatActivity {
                     mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.setMaxValue(20);
                     mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.setMinValue(0);
                     mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.setMaxValue(20);
+                    mLayoutGenerateBinding.numberPickerGenerateWords.setMinValue(1);
+                    mLayoutGenerateBinding.numberPickerGenerateWords.setMaxValue(20);
 
                     mLayoutGenerateBinding.numberPickerGenerateLettersMin.setValue(0);
                     mLayoutGenerateBinding.numberPickerGenerateNumbersMin.setValue(0);
@@ -1021,6 +1817,7 @@ public class MainActivity extends AppCompatActivity {
                     mLayoutGenerateBinding.numberPickerGenerateLettersMax.setValue(20);
                     mLayoutGenerateBinding.numberPickerGenerateNumbersMax.setValue(20);
                     mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.setValue(20);
+                    mLayoutGenerateBinding.numberPickerGenerateWords.setValue(6);
 
                     mLayoutGenerateBinding.linearLayoutGenerateRootLayout.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
                         final int height = bottom - top;
@@ -1050,9 +1847,8 @@ public class MainActivity extends AppCompatActivity {
                         if (newVal == 0) {
                             mLayoutGenerateBinding.buttonGenerateStorePassword.setEnabled(false);
                             mLayoutGenerateBinding.imageButtonRegeneratePassword.setEnabled(false);
-                            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.removeTextChangedListener(mDisableManualEditingGenerate);
-                            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.setText(mGeneratedPasswordCache = "");
-                            mLayoutGenerateBinding.editTextGenerateGeneratedPassword.addTextChangedListener(mDisableManualEditingGenerate);
+                            mGeneratedPassword.wipe();
+                            showGenerated();
                             return;
                         }
                         mLayoutGenerateBinding.buttonGenerateStorePassword.setEnabled(true);
@@ -1065,6 +1861,26 @@ public class MainActivity extends AppCompatActivity {
                     mLayoutGenerateBinding.numberPickerGenerateNumbersMax.setOnValueChangedListener(mParametersChangedGenerate);
                     mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.setOnValueChangedListener(mParametersChangedGenerate);
                     mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.setOnValueChangedListener(mParametersChangedGenerate);
+                    mLayoutGenerateBinding.numberPickerGenerateWords.setOnValueChangedListener(mParametersChangedGenerate);
+                    mLayoutGenerateBinding.checkBoxGenerateCapitalize.setOnCheckedChangeListener((buttonView, isChecked) -> generatePassword());
+                    mLayoutGenerateBinding.checkBoxGeneratePassphrase.setOnCheckedChangeListener((buttonView, isChecked) -> setPassphraseMode(isChecked));
+                    mLayoutGenerateBinding.editTextGenerateSeparator.addTextChangedListener(new TextWatcher() {
+                        @Override
+                        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+
+                        }
+
+                        @Override
+                        public void onTextChanged(CharSequence s, int start, int before, int count) {
+
+                        }
+
+                        @Override
+                        public void afterTextChanged(Editable s) {
+                            if (mLayoutGenerateBinding.checkBoxGeneratePassphrase.isChecked())
+                                generatePassword();
+                        }
+                    });
                     mLayoutGenerateBinding.editTextGenerateGeneratedPassword.addTextChangedListener(mDisableManualEditingGenerate);
                     mLayoutGenerateBinding.editTextGenerateGeneratedPassword.addTextChangedListener(new TextWatcher() {
                         @Override
@@ -1084,13 +1900,41 @@ public class MainActivity extends AppCompatActivity {
                     });
                     mLayoutGenerateBinding.imageButtonRegeneratePassword.setOnClickListener(v -> generatePassword());
                     mLayoutGenerateBinding.imageButtonRegeneratePassword.setEnabled(false);
-                    mLayoutGenerateBinding.buttonGenerateStorePassword.setOnClickListener(v -> {
-                        mActivityMainBinding.tabLayout.selectTab(mActivityMainBinding.tabLayout.getTabAt(0));
+                    mLayoutGenerateBinding.buttonGenerateStorePassword.setOnClickListener(v -> fillNewTab(() -> {
                         mLayoutNewBinding.editTextNewFilename.setText("");
                         mLayoutNewBinding.editTextNewPasswordToStore.setText(mLayoutGenerateBinding.editTextGenerateGeneratedPassword.getText());
                         mLayoutNewBinding.editTextNewPasswordToStoreConfirm.setText(mLayoutGenerateBinding.editTextGenerateGeneratedPassword.getText());
                         mLayoutNewBinding.editTextNewMasterPassword.setText("");
                         mLayoutNewBinding.editTextNewMasterPasswordConfirm.setText("");
+                    }));
+                    // Lines the pickers up once the tab has been laid out
+                    mActivityMainBinding.viewPager2.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+                        @Override
+                        public void onGlobalLayout() {
+                            final int lengthLeft = mLayoutGenerateBinding.numberPickerGenerateLength.getLeft();
+                            final int letterLeft = mLayoutGenerateBinding.numberPickerGenerateLettersMin.getLeft();
+                            final int numberLeft = mLayoutGenerateBinding.numberPickerGenerateNumbersMin.getLeft();
+                            final int symbolLeft = mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.getLeft();
+                            final int maxLeft = Math.max(Math.max(Math.max(lengthLeft, letterLeft), numberLeft), symbolLeft);
+
+                            if (maxLeft == 0)
+                                return;
+
+                            MarginSetter marginSetter = (numberPicker, marginLeft) -> {
+                                LinearLayout.LayoutParams params = (LinearLayout.LayoutParams) numberPicker.getLayoutParams();
+                                if (params.leftMargin != marginLeft) {
+                                    params.setMargins(marginLeft, 0, 0, 0);
+                                    numberPicker.setLayoutParams(params);
+                                }
+                            };
+
+                            marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateLength, maxLeft - lengthLeft);
+                            marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateLettersMin, maxLeft - letterLeft);
+                            marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateNumbersMin, maxLeft - numberLeft);
+                            marginSetter.setMargin(mLayoutGenerateBinding.numberPickerGenerateSymbolsMin, maxLeft - symbolLeft);
+
+                            mActivityMainBinding.viewPager2.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+                        }
                     });
                     view = mLayoutGenerateBinding.getRoot();
                     view.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
@@ -1100,14 +1944,11 @@ public class MainActivity extends AppCompatActivity {
                 default:
                     throw new IllegalStateException("Unexpected value: " + viewType);
             }
-            if (mSavedInstanceState != null) {
+            if (mSavedInstanceState != null && viewType == 0) {
                 mLayoutNewBinding.editTextNewFilename.setText(mSavedInstanceState.getString("editText_new_filename"));
-                mLayoutNewBinding.editTextNewMasterPassword.setText(mSavedInstanceState.getString("editText_new_masterPassword"));
-                mLayoutNewBinding.editTextNewMasterPasswordConfirm.setText(mSavedInstanceState.getString("editText_new_masterPasswordConfirm"));
-                mLayoutNewBinding.editTextNewPasswordToStore.setText(mSavedInstanceState.getString("editText_new_passwordToStore"));
-                mLayoutNewBinding.editTextNewPasswordToStoreConfirm.setText(mSavedInstanceState.getString("editText_new_passwordToStoreConfirm"));
+            } else if (mSavedInstanceState != null && viewType == 1) {
                 mLayoutReadBinding.editTextReadSearch.setText(mSavedInstanceState.getString("editText_read_search"));
-                mLayoutReadBinding.editTextReadMasterPassword.setText(mSavedInstanceState.getString("editText_read_masterPassword"));
+            } else if (mSavedInstanceState != null && viewType == 2) {
                 mLayoutGenerateBinding.numberPickerGenerateLength.setValue(mSavedInstanceState.getInt("numberPicker_generate_length"));
                 mLayoutGenerateBinding.numberPickerGenerateLettersMin.setValue(mSavedInstanceState.getInt("numberPicker_generate_lettersMin"));
                 mLayoutGenerateBinding.numberPickerGenerateLettersMax.setValue(mSavedInstanceState.getInt("numberPicker_generate_lettersMax"));
@@ -1115,6 +1956,14 @@ public class MainActivity extends AppCompatActivity {
                 mLayoutGenerateBinding.numberPickerGenerateNumbersMax.setValue(mSavedInstanceState.getInt("numberPicker_generate_numbersMax"));
                 mLayoutGenerateBinding.numberPickerGenerateSymbolsMin.setValue(mSavedInstanceState.getInt("numberPicker_generate_symbolsMin"));
                 mLayoutGenerateBinding.numberPickerGenerateSymbolsMax.setValue(mSavedInstanceState.getInt("numberPicker_generate_symbolsMax"));
+                mLayoutGenerateBinding.numberPickerGenerateWords.setValue(mSavedInstanceState.getInt("numberPicker_generate_words", 6));
+                mLayoutGenerateBinding.editTextGenerateSeparator.setText(mSavedInstanceState.getString("editText_generate_separator", "-"));
+                mLayoutGenerateBinding.checkBoxGenerateCapitalize.setChecked(mSavedInstanceState.getBoolean("checkBox_generate_capitalize"));
+                mLayoutGenerateBinding.checkBoxGeneratePassphrase.setChecked(mSavedInstanceState.getBoolean("checkBox_generate_passphrase"));
+            }
+            if (viewType == 0 && mPendingNewTab != null) {
+                mPendingNewTab.run();
+                mPendingNewTab = null;
             }
             return new ViewHolder(view);
         }
@@ -1134,24 +1983,86 @@ public class MainActivity extends AppCompatActivity {
             return position;
         }
 
-        void storePassword(File passwordFile) {
+        void showDecoded() {
+            mLayoutReadBinding.editTextReadDecodedPassword.removeTextChangedListener(mDisableManualEditingDecode);
+            mLayoutReadBinding.editTextReadDecodedPassword.setText(mDecoder.buffer());
+            mLayoutReadBinding.editTextReadDecodedPassword.addTextChangedListener(mDisableManualEditingDecode);
+        }
+
+        // With a cached key the entry is decrypted right away, otherwise the key is derived in the background; every keystroke supersedes the previous derivation
+        void decrypt(PasswordCipher.Entry entry, CharSequence masterPassword) {
+            final byte[] password = PasswordCipher.encodeUtf8(masterPassword);
+            final byte[] fingerprint;
             try {
-                FileWriter writer = new FileWriter(passwordFile);
-                char[] passwordToStore = mLayoutNewBinding.editTextNewPasswordToStore.getText().toString().toCharArray();
-                String masterPassword = mLayoutNewBinding.editTextNewMasterPassword.getText().toString();
-                while (masterPassword.length() < passwordToStore.length)
-                    masterPassword += masterPassword;
-                for (int i = 0; i < passwordToStore.length; ++i)
-                    passwordToStore[i] = (char) (passwordToStore[i] + masterPassword.charAt(i) - CHAR_LOWEST > CHAR_HIGHEST ?
-                                                 passwordToStore[i] + masterPassword.charAt(i) - CHAR_HIGHEST - 1 :
-                                                 passwordToStore[i] + masterPassword.charAt(i) - CHAR_LOWEST);
-                writer.append(String.valueOf(passwordToStore));
-                writer.flush();
-                writer.close();
-                Toast.makeText(MainActivity.this, "Password successfully saved.", Toast.LENGTH_LONG).show();
+                fingerprint = mKeyCache.fingerprint(password, entry.salt, entry.iterations);
+            } catch (IOException ioe) {
+                Arrays.fill(password, (byte) 0);
+                return;
+            }
+            final byte[] key = mKeyCache.get(fingerprint);
+            if (key != null) {
+                Arrays.fill(password, (byte) 0);
+                mStorageExecutor.cancel("derive");
+                showDecrypted(entry, key);
+                return;
+            }
+            mDecoder.wipe();
+            showDecoded();
+            mStorageExecutor.submitLatest("derive", () -> {
+                final long start = Perf.start("decode.kdf");
+                try {
+                    return PasswordCipher.deriveKey(password, entry.salt, entry.iterations);
+                } finally {
+                    Perf.stop("decode.kdf", start);
+                    Arrays.fill(password, (byte) 0);
+                }
+            }, derived -> {
+                mKeyCache.put(fingerprint, derived);
+                if (entry == mEncryptedEntry)
+                    showDecrypted(entry, derived);
+                else
+                    Arrays.fill(derived, (byte) 0);
+            }, ioe -> {});
+        }
+
+        // A wrong master password shows nothing, there's no garbage to show like with the shift encoding; wipes key, a copy from the cache
+        void showDecrypted(PasswordCipher.Entry entry, byte[] key) {
+            boolean decrypted = false;
+            final long start = Perf.start("decode.aes");
+            try {
+                // Straight into the decoder's buffer, the plaintext never becomes a char[] or String
+                decrypted = entry.decrypt(key, mDecoder.buffer());
             } catch (IOException ioe) {
-                Toast.makeText(MainActivity.this, "An error occurred, please try again.", Toast.LENGTH_LONG).show();
+
+            } finally {
+                Perf.stop("decode.aes", start);
+                Arrays.fill(key, (byte) 0);
             }
+            if (!decrypted)
+                mDecoder.wipe();
+            showDecoded();
+        }
+
+        void storePassword(String name, boolean isNew) {
+            final Editable password = mLayoutNewBinding.editTextNewPasswordToStore.getText();
+            final SecretBuffer passwordToStore = SecretBuffer.obtain(password.length());
+            passwordToStore.set(password);
+            final byte[] masterPassword = PasswordCipher.encodeUtf8(mLayoutNewBinding.editTextNewMasterPassword.getText());
+            mStorageExecutor.submit(() -> {
+                final long start = Perf.start("store");
+                try {
+                    mStore.write(name, encrypt(masterPassword, passwordToStore));
+                } finally {
+                    Perf.stop("store", start);
+                    passwordToStore.close();
+                    Arrays.fill(masterPassword, (byte) 0);
+                }
+                return null;
+            }, stored -> {
+                if (isNew && mPasswordNames.add(name))
+                    namesChanged();
+                Toast.makeText(MainActivity.this, "Password successfully saved.", Toast.LENGTH_LONG).show();
+            }, ioe -> Toast.makeText(MainActivity.this, "An error occurred, please try again.", Toast.LENGTH_LONG).show());
         }
 
         public class ViewHolder extends RecyclerView.ViewHolder {
@@ -0,0 +1,88 @@
+package hu.cshb.passwordmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Username, URL, notes and tags of the entries, stored apart from the encrypted entries so that listing, filtering and
+ * showing them never touches a secret:
+ *   magic, entry count, then per entry: name, username, URL, notes, tag count, tags (all modified UTF-8)
+ * Entries without metadata aren't stored. The file is rewritten whole, through a synced temporary file.
+ */
+class MetadataFile {
+    static final String FILENAME = "metadata.db";
+
+    private static final int MAGIC = 0x50574D44; // "PWMD"
+
+    private static final Object sWriteLock = new Object();
+
+    private final File mFile;
+
+    MetadataFile(File directory) {
+        mFile = new File(directory, FILENAME);
+    }
+
+    // Empty if there's no metadata yet
+    Map<String, EntryMetadata> read() throws IOException {
+        Map<String, EntryMetadata> metadata = new HashMap<>();
+        if (!mFile.exists())
+            return metadata;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(DirectoryStore.readFully(mFile)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(FILENAME + " is not a metadata file");
+            for (int count = in.readInt(); count > 0; --count) {
+                final String name = in.readUTF(), username = in.readUTF(), url = in.readUTF(), notes = in.readUTF();
+                final int tagCount = in.readUnsignedShort();
+                List<String> tags = new ArrayList<>(tagCount);
+                for (int i = 0; i < tagCount; ++i)
+                    tags.add(in.readUTF());
+                metadata.put(name, new EntryMetadata(username, url, notes, tags));
+            }
+        } catch (EOFException eofe) {
+            throw new IOException(FILENAME + " is truncated");
+        }
+        return metadata;
+    }
+
+    void write(Map<String, EntryMetadata> metadata) throws IOException {
+        // One writer at a time in the process, e.g. a finishing and a new activity; a tmp file of its own all the same
+        synchronized (sWriteLock) {
+            File tmp = File.createTempFile(mFile.getName(), ".tmp", mFile.getParentFile());
+            try {
+                try (FileOutputStream os = new FileOutputStream(tmp)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+                    out.writeInt(MAGIC);
+                    out.writeInt(metadata.size());
+                    for (Map.Entry<String, EntryMetadata> entry : metadata.entrySet()) {
+                        final EntryMetadata value = entry.getValue();
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(value.username);
+                        out.writeUTF(value.url);
+                        out.writeUTF(value.notes);
+                        out.writeShort(value.tags.size());
+                        for (String tag : value.tags)
+                            out.writeUTF(tag);
+                    }
+                    out.flush();
+                    os.getFD().sync();
+                }
+                if (!tmp.renameTo(mFile))
+                    throw new IOException("Couldn't replace " + FILENAME);
+            } catch (IOException | RuntimeException e) {
+                tmp.delete();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package hu.cshb.passwordmanager;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * The password names in display order, each stored next to its sort key (the case-folded name), so a name is folded
+ * once when it enters the catalog instead of on every comparison. Names with equal keys are ordered by the name itself.
+ * Lookups, insertions and removals are binary searches on the keys; bulk additions are merged in with one pass.
+ */
+class NameCatalog {
+    private String[] mNames;
+    private String[] mKeys;
+    private int mSize;
+
+    NameCatalog(Collection<String> names) {
+        this(new String[16], new String[16]);
+        addAll(names);
+    }
+
+    private NameCatalog(String[] names, String[] keys) {
+        mNames = names;
+        mKeys = keys;
+    }
+
+    private NameCatalog(NameCatalog other) {
+        mNames = Arrays.copyOf(other.mNames, other.mSize);
+        mKeys = Arrays.copyOf(other.mKeys, other.mSize);
+        mSize = other.mSize;
+    }
+
+    static String fold(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    String get(int index) {
+        return mNames[index];
+    }
+
+    String key(int index) {
+        return mKeys[index];
+    }
+
+    int indexOf(String name) {
+        final int index = search(name, fold(name));
+        return index < 0 ? -1 : index;
+    }
+
+    boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    boolean add(String name) {
+        final String key = fold(name);
+        final int index = search(name, key);
+        if (index >= 0)
+            return false;
+        final int insertAt = -index - 1;
+        if (mSize == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mSize * 2);
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+        }
+        System.arraycopy(mNames, insertAt, mNames, insertAt + 1, mSize - insertAt);
+        System.arraycopy(mKeys, insertAt, mKeys, insertAt + 1, mSize - insertAt);
+        mNames[insertAt] = name;
+        mKeys[insertAt] = key;
+        ++mSize;
+        return true;
+    }
+
+    void addAll(Collection<String> names) {
+        if (names.size() < 8) {
+            for (String name : names)
+                add(name);
+            return;
+        }
+        // Fold and sort the new names, then merge the two sorted runs
+        NameCatalog added = new NameCatalog(new String[names.size()], new String[names.size()]);
+        for (String name : names) {
+            added.mNames[added.mSize] = name;
+            added.mKeys[added.mSize++] = fold(name);
+        }
+        added.sort();
+
+        String[] names2 = new String[Math.max(16, mSize + added.mSize)], keys2 = new String[names2.length];
+        int i = 0, j = 0, k = 0;
+        while (i < mSize || j < added.mSize) {
+            final int order = i == mSize ? 1 : j == added.mSize ? -1 :
+                    compare(mKeys[i], mNames[i], added.mKeys[j], added.mNames[j]);
+            if (order <= 0) {
+                names2[k] = mNames[i];
+                keys2[k] = mKeys[i++];
+                if (order == 0)
+                    ++j;
+            } else {
+                names2[k] = added.mNames[j];
+                keys2[k] = added.mKeys[j++];
+            }
+            if (k == 0 || !names2[k].equals(names2[k - 1]))
+                ++k;
+        }
+        mNames = names2;
+        mKeys = keys2;
+        mSize = k;
+    }
+
+    boolean remove(String name) {
+        final int index = indexOf(name);
+        if (index < 0)
+            return false;
+        System.arraycopy(mNames, index + 1, mNames, index, mSize - index - 1);
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        mNames[--mSize] = null;
+        mKeys[mSize] = null;
+        return true;
+    }
+
+    // Immutable copy that's safe to hand to other threads
+    NameCatalog snapshot() {
+        return new NameCatalog(this);
+    }
+
+    List<String> names() {
+        return Collections.unmodifiableList(Arrays.asList(mNames).subList(0, mSize));
+    }
+
+    private void sort() {
+        int sorted = 1;
+        while (sorted < mSize && compare(mKeys[sorted - 1], mNames[sorted - 1], mKeys[sorted], mNames[sorted]) < 0)
+            ++sorted;
+        if (sorted >= mSize)
+            return; // E.g. names read back from the CatalogFile
+        Integer[] order = new Integer[mSize];
+        for (int i = 0; i < mSize; ++i)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> compare(mKeys[a], mNames[a], mKeys[b], mNames[b]));
+        String[] names = new String[mSize], keys = new String[mSize];
+        for (int i = 0; i < mSize; ++i) {
+            names[i] = mNames[order[i]];
+            keys[i] = mKeys[order[i]];
+        }
+        mNames = names;
+        mKeys = keys;
+    }
+
+    private int search(String name, String key) {
+        int low = 0, high = mSize - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int order = compare(mKeys[middle], mNames[middle], key, name);
+            if (order < 0)
+                low = middle + 1;
+            else if (order > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    private static int compare(String keyA, String nameA, String keyB, String nameB) {
+        final int order = keyA.compareTo(keyB);
+        return order != 0 ? order : nameA.compareTo(nameB);
+    }
+}
@@ -0,0 +1,242 @@
+package hu.cshb.passwordmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Search index over the password names for the Read tab filter.
+ * Names come in sorted order from a NameCatalog together with their case-folded form, plus a bitmask of the characters they contain.
+ * The trigram index maps every three-character sequence (reduced to a 21 bit code, collisions only cost a
+ * verification) to the sorted ids of the names containing it, stored as flat arrays.
+ * A query matches a name if it's a substring of it, or failing that and if it's at least MIN_FUZZY_LENGTH
+ * long, a subsequence of it (fuzzy match).
+ * Typing usually extends the previous query, in which case only the previous matches are rechecked.
+ */
+class NameIndex {
+    private static final int MIN_FUZZY_LENGTH = 3;
+
+    private final NameCatalog mCatalog;
+    private final String[] mNames;
+    private final String[] mFolded;
+    private final long[] mCharacterMasks;
+    private final int[] mTrigramCodes;
+    private final int[] mPostingStarts;
+    private final int[] mPostings;
+
+    // Refinement state of the last search, the index is shared with the Filter's worker thread
+    private String mLastQuery;
+    private int[] mLastSubstringMatches;
+    private int[] mLastFuzzyMatches;
+
+    NameIndex(NameCatalog catalog) {
+        mCatalog = catalog;
+        mNames = new String[catalog.size()];
+        mFolded = new String[catalog.size()];
+        mCharacterMasks = new long[mNames.length];
+        int trigramCount = 0;
+        for (int id = 0; id < mNames.length; ++id) {
+            mNames[id] = catalog.get(id);
+            mFolded[id] = catalog.key(id);
+            mCharacterMasks[id] = characterMask(mFolded[id]);
+            trigramCount += Math.max(0, mFolded[id].length() - 2);
+        }
+
+        // (code, id) pairs sorted once, then split into the code table and the posting lists
+        long[] pairs = new long[trigramCount];
+        int p = 0;
+        for (int id = 0; id < mNames.length; ++id)
+            for (int i = 0; i + 3 <= mFolded[id].length(); ++i)
+                pairs[p++] = ((long) trigram(mFolded[id], i) << 32) | id;
+        Arrays.sort(pairs);
+
+        IntList codes = new IntList(), starts = new IntList(), postings = new IntList();
+        long previous = -1;
+        for (long pair : pairs) {
+            if (pair == previous)
+                continue;
+            final int code = (int) (pair >>> 32);
+            if (codes.size == 0 || codes.values[codes.size - 1] != code) {
+                codes.add(code);
+                starts.add(postings.size);
+            }
+            postings.add((int) pair);
+            previous = pair;
+        }
+        starts.add(postings.size);
+        mTrigramCodes = codes.toArray();
+        mPostingStarts = starts.toArray();
+        mPostings = postings.toArray();
+    }
+
+    // The snapshot the index was built from
+    NameCatalog catalog() {
+        return mCatalog;
+    }
+
+    int size() {
+        return mNames.length;
+    }
+
+    List<String> names() {
+        return Collections.unmodifiableList(Arrays.asList(mNames));
+    }
+
+    // Substring matches first, then fuzzy matches, both in sorted order
+    synchronized List<String> search(CharSequence query) {
+        final String folded = NameCatalog.fold(query.toString());
+        if (folded.isEmpty()) {
+            mLastQuery = null;
+            return names();
+        }
+
+        int[] substringCandidates, fuzzyCandidates;
+        if (mLastQuery != null && folded.startsWith(mLastQuery)) {
+            // Every name matching the longer query matched the shorter one too
+            substringCandidates = mLastSubstringMatches;
+            fuzzyCandidates = mLastQuery.length() < MIN_FUZZY_LENGTH ? null : mLastFuzzyMatches;
+            if (fuzzyCandidates == null && folded.length() >= 3)
+                substringCandidates = trigramCandidates(folded);
+        } else {
+            substringCandidates = folded.length() >= 3 ? trigramCandidates(folded) : null;
+            fuzzyCandidates = null;
+        }
+
+        IntList substringMatches = new IntList();
+        if (substringCandidates == null) {
+            for (int id = 0; id < mFolded.length; ++id)
+                if (mFolded[id].contains(folded))
+                    substringMatches.add(id);
+        } else {
+            for (int id : substringCandidates)
+                if (mFolded[id].contains(folded))
+                    substringMatches.add(id);
+        }
+
+        IntList fuzzyMatches = new IntList();
+        final long queryMask = characterMask(folded);
+        if (folded.length() < MIN_FUZZY_LENGTH) {
+            // Too short for fuzzy matching to mean anything
+        } else if (fuzzyCandidates == null) {
+            int next = 0;
+            for (int id = 0; id < mFolded.length; ++id) {
+                if (next < substringMatches.size && substringMatches.values[next] == id) {
+                    ++next;
+                    continue;
+                }
+                if ((queryMask & ~mCharacterMasks[id]) == 0 && isSubsequence(folded, mFolded[id]))
+                    fuzzyMatches.add(id);
+            }
+        } else {
+            // Previous substring matches may have become fuzzy ones
+            fuzzyCandidates = merge(fuzzyCandidates, substringCandidates);
+            int next = 0;
+            for (int id : fuzzyCandidates) {
+                while (next < substringMatches.size && substringMatches.values[next] < id)
+                    ++next;
+                if (next < substringMatches.size && substringMatches.values[next] == id)
+                    continue;
+                if ((queryMask & ~mCharacterMasks[id]) == 0 && isSubsequence(folded, mFolded[id]))
+                    fuzzyMatches.add(id);
+            }
+        }
+
+        mLastQuery = folded;
+        mLastSubstringMatches = substringMatches.toArray();
+        mLastFuzzyMatches = fuzzyMatches.toArray();
+
+        List<String> result = new ArrayList<>(substringMatches.size + fuzzyMatches.size);
+        for (int id : mLastSubstringMatches)
+            result.add(mNames[id]);
+        for (int id : mLastFuzzyMatches)
+            result.add(mNames[id]);
+        return result;
+    }
+
+    // Intersection of the posting lists of all trigrams in the query
+    private int[] trigramCandidates(String folded) {
+        int[] candidates = null;
+        for (int i = 0; i + 3 <= folded.length(); ++i) {
+            final int index = Arrays.binarySearch(mTrigramCodes, trigram(folded, i));
+            if (index < 0)
+                return new int[0];
+            final int[] postings = Arrays.copyOfRange(mPostings, mPostingStarts[index], mPostingStarts[index + 1]);
+            candidates = candidates == null ? postings : intersect(candidates, postings);
+            if (candidates.length == 0)
+                break;
+        }
+        return candidates;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        IntList result = new IntList();
+        int i = 0, j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                ++i;
+            else if (a[i] > b[j])
+                ++j;
+            else {
+                result.add(a[i]);
+                ++i;
+                ++j;
+            }
+        }
+        return result.toArray();
+    }
+
+    private static int[] merge(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j]))
+                result[k++] = a[i++];
+            else if (i == a.length || b[j] < a[i])
+                result[k++] = b[j++];
+            else {
+                result[k++] = a[i++];
+                ++j;
+            }
+        }
+        return k == result.length ? result : Arrays.copyOf(result, k);
+    }
+
+    private static boolean isSubsequence(String query, String name) {
+        int position = 0;
+        for (int i = 0; i < query.length(); ++i) {
+            position = name.indexOf(query.charAt(i), position);
+            if (position < 0)
+                return false;
+            ++position;
+        }
+        return true;
+    }
+
+    private static int trigram(String s, int i) {
+        return ((s.charAt(i) & 0x7F) << 14) | ((s.charAt(i + 1) & 0x7F) << 7) | (s.charAt(i + 2) & 0x7F);
+    }
+
+    // One bit per character class (folded modulo 64), used to rule out fuzzy matches cheaply
+    private static long characterMask(String s) {
+        long mask = 0;
+        for (int i = 0; i < s.length(); ++i)
+            mask |= 1L << (s.charAt(i) & 63);
+        return mask;
+    }
+
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package hu.cshb.passwordmanager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/*
+ * Passphrases of words drawn uniformly and independently from a WordList with SecureRandom, joined by a separator
+ * and optionally capitalized. Each word adds log2(list size) bits; the separator and capitalization are fixed
+ * settings, so they add none.
+ * A generator isn't thread-safe, use one per thread.
+ */
+final class PassphraseGenerator {
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final WordList mWords;
+    private final int[] mPicks;
+    private final String mSeparator;
+    private final boolean mCapitalize;
+
+    PassphraseGenerator(WordList words, int wordCount, String separator, boolean capitalize) {
+        mWords = words;
+        mPicks = new int[Math.max(0, wordCount)];
+        mSeparator = separator;
+        mCapitalize = capitalize;
+    }
+
+    boolean isSatisfiable() {
+        return mPicks.length > 0;
+    }
+
+    double entropyBits() {
+        return mPicks.length * Math.log(mWords.size()) / Math.log(2);
+    }
+
+    // The caller wipes the result, the generator must be satisfiable
+    char[] generate() {
+        int length = mSeparator.length() * (mPicks.length - 1);
+        for (int i = 0; i < mPicks.length; ++i) {
+            mPicks[i] = sRandom.nextInt(mWords.size());
+            length += mWords.length(mPicks[i]);
+        }
+        final char[] passphrase = new char[length];
+        int position = 0;
+        for (int i = 0; i < mPicks.length; ++i) {
+            if (i > 0) {
+                mSeparator.getChars(0, mSeparator.length(), passphrase, position);
+                position += mSeparator.length();
+            }
+            final int start = position;
+            position = mWords.copy(mPicks[i], passphrase, position);
+            if (mCapitalize)
+                passphrase[start] = Character.toUpperCase(passphrase[start]);
+        }
+        Arrays.fill(mPicks, 0);
+        return passphrase;
+    }
+
+    // Every passphrase is wiped once the sink returns
+    void generate(int count, PasswordGenerator.Sink sink) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            final char[] passphrase = generate();
+            try {
+                sink.accept(passphrase);
+            } finally {
+                Arrays.fill(passphrase, '\0');
+            }
+        }
+    }
+
+    // One passphrase per line
+    void write(int count, Writer writer) throws IOException {
+        generate(count, passphrase -> {
+            writer.write(passphrase);
+            writer.write('\n');
+        });
+    }
+}
@@ -0,0 +1,213 @@
+package hu.cshb.passwordmanager;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Encrypted entry format, replacing the ShiftCodec for new passwords:
+ *   magic, PBKDF2 iteration count, salt length, salt, GCM nonce, AES-256-GCM ciphertext and tag
+ * The header is authenticated as associated data. The key is PBKDF2-HMAC-SHA256 of the master password, implemented
+ * here rather than through SecretKeyFactory so it's available on every API level and can be cancelled midway.
+ * The magic starts with a 0 byte, which never occurs in shift-encoded files.
+ */
+final class PasswordCipher {
+    private static final byte[] MAGIC = { 0, 'P', 'W', 2 };
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    static final int SALT_LENGTH = 16;
+
+    // Derivation should take about this long on the device, but never go below MIN_ITERATIONS
+    private static final long TARGET_MILLIS = 400;
+    private static final int MIN_ITERATIONS = 10000;
+    private static final int MAX_ITERATIONS = 10000000;
+    private static final int CALIBRATION_ITERATIONS = 4096;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private PasswordCipher() {
+    }
+
+    // A parsed encrypted entry
+    static final class Entry {
+        final int iterations;
+        final byte[] salt;
+        private final byte[] mContent;
+        private final int mHeaderLength;
+
+        private Entry(byte[] content) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(content, MAGIC.length, content.length - MAGIC.length);
+            iterations = buffer.getInt();
+            final int saltLength = buffer.get() & 0xFF;
+            // Entries come from imports and restores too, a crafted count mustn't tie up a worker in the derivation
+            if (iterations <= 0 || iterations > MAX_ITERATIONS || buffer.remaining() < saltLength + NONCE_LENGTH + TAG_BITS / 8)
+                throw new IOException("Damaged password entry");
+            salt = new byte[saltLength];
+            buffer.get(salt);
+            mHeaderLength = buffer.position() + NONCE_LENGTH;
+            mContent = content;
+        }
+
+        // Null if the key is wrong (or the entry was tampered with)
+        char[] decrypt(byte[] key) throws IOException {
+            final byte[] plaintext = plaintext(key);
+            if (plaintext == null)
+                return null;
+            try {
+                return decodeUtf8(plaintext);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+
+        // Decrypts into the buffer, replacing its contents; false, and the buffer untouched, if the key is wrong
+        boolean decrypt(byte[] key, SecretBuffer password) throws IOException {
+            final byte[] plaintext = plaintext(key);
+            if (plaintext == null)
+                return false;
+            try {
+                password.setUtf8(plaintext);
+                return true;
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+
+        private byte[] plaintext(byte[] key) throws IOException {
+            try {
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                        new GCMParameterSpec(TAG_BITS, mContent, mHeaderLength - NONCE_LENGTH, NONCE_LENGTH));
+                cipher.updateAAD(mContent, 0, mHeaderLength);
+                return cipher.doFinal(mContent, mHeaderLength, mContent.length - mHeaderLength);
+            } catch (AEADBadTagException abte) {
+                return null;
+            } catch (GeneralSecurityException gse) {
+                throw new IOException(gse);
+            }
+        }
+    }
+
+    static boolean isEncrypted(byte[] content) {
+        if (content.length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; ++i)
+            if (content[i] != MAGIC[i])
+                return false;
+        return true;
+    }
+
+    static Entry parse(byte[] content) throws IOException {
+        if (!isEncrypted(content))
+            throw new IOException("Not an encrypted password entry");
+        try {
+            return new Entry(content);
+        } catch (RuntimeException re) {
+            throw new IOException("Damaged password entry");
+        }
+    }
+
+    static byte[] encrypt(byte[] key, byte[] salt, int iterations, char[] password) throws IOException {
+        return encrypt(key, salt, iterations, CharBuffer.wrap(password));
+    }
+
+    static byte[] encrypt(byte[] key, byte[] salt, int iterations, CharSequence password) throws IOException {
+        byte[] plaintext = encodeUtf8(password);
+        try {
+            final byte[] nonce = new byte[NONCE_LENGTH];
+            sRandom.nextBytes(nonce);
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 1 + salt.length + NONCE_LENGTH);
+            header.put(MAGIC).putInt(iterations).put((byte) salt.length).put(salt).put(nonce);
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(header.array());
+            final byte[] ciphertext = cipher.doFinal(plaintext);
+            byte[] content = Arrays.copyOf(header.array(), header.capacity() + ciphertext.length);
+            System.arraycopy(ciphertext, 0, content, header.capacity(), ciphertext.length);
+            return content;
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    // PBKDF2-HMAC-SHA256 with one output block; checks for interruption so superseded derivations stop early
+    static byte[] deriveKey(byte[] password, byte[] salt, int iterations) throws IOException {
+        final byte[] u = new byte[KEY_LENGTH], key = new byte[KEY_LENGTH];
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(password, "HmacSHA256"));
+            mac.update(salt);
+            mac.update(new byte[] { 0, 0, 0, 1 });
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, key, 0, KEY_LENGTH);
+            for (int i = 1; i < iterations; ++i) {
+                if ((i & 1023) == 0 && Thread.currentThread().isInterrupted()) {
+                    Arrays.fill(key, (byte) 0);
+                    throw new InterruptedIOException("Key derivation cancelled");
+                }
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < KEY_LENGTH; ++j)
+                    key[j] ^= u[j];
+            }
+            return key;
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        } finally {
+            Arrays.fill(u, (byte) 0);
+        }
+    }
+
+    // Iteration count that makes deriveKey() take about TARGET_MILLIS on this device
+    static int calibrate() throws IOException {
+        final byte[] password = new byte[16], salt = newSalt();
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; ++run) {
+            final long start = System.nanoTime();
+            Arrays.fill(deriveKey(password, salt, CALIBRATION_ITERATIONS), (byte) 0);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        final long iterations = CALIBRATION_ITERATIONS * TARGET_MILLIS * 1000000L / Math.max(1, best);
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations / 1000 * 1000));
+    }
+
+    static byte[] newSalt() {
+        final byte[] salt = new byte[SALT_LENGTH];
+        sRandom.nextBytes(salt);
+        return salt;
+    }
+
+    // The caller wipes the result; the intermediate buffer is wiped here
+    static byte[] encodeUtf8(CharSequence text) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        if (encoded.hasArray())
+            Arrays.fill(encoded.array(), (byte) 0);
+        return bytes;
+    }
+
+    private static char[] decodeUtf8(byte[] bytes) {
+        CharBuffer decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes));
+        final char[] chars = new char[decoded.remaining()];
+        decoded.get(chars);
+        if (decoded.hasArray())
+            Arrays.fill(decoded.array(), '\0');
+        return chars;
+    }
+}
@@ -0,0 +1,108 @@
+package hu.cshb.passwordmanager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/*
+ * Random passwords with a given length and bounds on the number of letters, numbers and symbols.
+ * Characters are picked from precomputed alphabets with SecureRandom. The free characters (length minus the minimums)
+ * are split between the types in one pass: visiting the types in random order, each gets a uniformly drawn share of
+ * what's left, within its own bound and leaving enough for the later types to reach the length.
+ * A generator isn't thread-safe, use one per thread.
+ */
+final class PasswordGenerator {
+    static final char[] LETTERS = alphabet('A', 'Z', 'a', 'z');
+    static final char[] NUMBERS = alphabet('0', '9');
+    static final char[] SYMBOLS = alphabet('!', '/', ':', '@', '[', '`', '{', '~');
+
+    private static final char[][] ALPHABETS = { LETTERS, NUMBERS, SYMBOLS };
+    private static final int[][] ORDERS = { { 0, 1, 2 }, { 0, 2, 1 }, { 1, 0, 2 }, { 1, 2, 0 }, { 2, 0, 1 }, { 2, 1, 0 } };
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    interface Sink {
+        // password is only valid during the call, it's overwritten by the next one
+        void accept(char[] password) throws IOException;
+    }
+
+    private final int mLength;
+    private final int[] mMinimums;
+    private final int[] mMaximums;
+    private final int[] mCounts = new int[3];
+
+    PasswordGenerator(int length, int minLetters, int maxLetters, int minNumbers, int maxNumbers, int minSymbols, int maxSymbols) {
+        mLength = length;
+        mMinimums = new int[] { minLetters, minNumbers, minSymbols };
+        mMaximums = new int[] { maxLetters, maxNumbers, maxSymbols };
+    }
+
+    boolean isSatisfiable() {
+        final int minimum = mMinimums[0] + mMinimums[1] + mMinimums[2];
+        final int maximum = mMaximums[0] + mMaximums[1] + mMaximums[2];
+        return mLength > 0 && minimum <= mLength && maximum >= mLength &&
+               mMinimums[0] <= mMaximums[0] && mMinimums[1] <= mMaximums[1] && mMinimums[2] <= mMaximums[2];
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    // Fills password[0..length()), the generator must be satisfiable
+    void generate(char[] password) {
+        int free = mLength - mMinimums[0] - mMinimums[1] - mMinimums[2];
+        final int[] order = ORDERS[sRandom.nextInt(ORDERS.length)];
+        int capacityLeft = mMaximums[0] - mMinimums[0] + mMaximums[1] - mMinimums[1] + mMaximums[2] - mMinimums[2];
+        for (int type : order) {
+            final int capacity = mMaximums[type] - mMinimums[type];
+            capacityLeft -= capacity;
+            final int low = Math.max(0, free - capacityLeft), high = Math.min(capacity, free);
+            final int extra = low + sRandom.nextInt(high - low + 1);
+            mCounts[type] = mMinimums[type] + extra;
+            free -= extra;
+        }
+
+        int position = 0;
+        for (int type = 0; type < ALPHABETS.length; ++type) {
+            final char[] alphabet = ALPHABETS[type];
+            for (int i = 0; i < mCounts[type]; ++i)
+                password[position++] = alphabet[sRandom.nextInt(alphabet.length)];
+        }
+        for (int i = mLength - 1; i > 0; --i) {
+            final int j = sRandom.nextInt(i + 1);
+            final char tmp = password[i];
+            password[i] = password[j];
+            password[j] = tmp;
+        }
+    }
+
+    // Streams count passwords through one reused buffer, which is wiped at the end
+    void generate(int count, Sink sink) throws IOException {
+        final char[] password = new char[mLength];
+        try {
+            for (int i = 0; i < count; ++i) {
+                generate(password);
+                sink.accept(password);
+            }
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    // One password per line
+    void write(int count, Writer writer) throws IOException {
+        generate(count, password -> {
+            writer.write(password);
+            writer.write('\n');
+        });
+    }
+
+    private static char[] alphabet(char... ranges) {
+        StringBuilder alphabet = new StringBuilder();
+        for (int i = 0; i < ranges.length; i += 2)
+            for (char c = ranges[i]; c <= ranges[i + 1]; ++c)
+                alphabet.append(c);
+        return alphabet.toString().toCharArray();
+    }
+}
@@ -0,0 +1,223 @@
+package hu.cshb.passwordmanager;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Shows the names matching the current filter, with at most one of them selected.
+ * Filtering runs on the Filter's worker thread through a NameIndex, and words of the query starting with # through a
+ * TagIndex ("#work #bank git": names containing git tagged both work and bank); every new list is diffed against the
+ * shown one by AsyncListDiffer on its background thread, so only the rows that actually changed get rebound.
+ */
+class PasswordListAdapter extends RecyclerView.Adapter<PasswordListAdapter.ViewHolder> implements Filterable {
+    static final String NO_PASSWORDS = "<no passwords>";
+
+    interface OnNameClickListener {
+        void onClick(View view, String name);
+    }
+
+    private static final DiffUtil.ItemCallback<String> DIFF_CALLBACK = new DiffUtil.ItemCallback<String>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull String oldItem, @NonNull String newItem) {
+            return oldItem.equals(newItem);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull String oldItem, @NonNull String newItem) {
+            return true;
+        }
+    };
+
+    private final NameCatalog mPasswordNames;
+    private final AsyncListDiffer<String> mDiffer = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private volatile List<String> mShown;
+    private volatile NameCatalog mSnapshot;
+    private volatile NameIndex mIndex;
+    private volatile Map<String, EntryMetadata> mMetadata = Collections.emptyMap();
+    private volatile TagIndex mTagIndex;
+    private CharSequence mQuery = "";
+    private String mSelected;
+    private OnNameClickListener mOnClickListener;
+    private OnNameClickListener mOnLongClickListener;
+
+    private final Filter mFilter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            List<String> tags = new ArrayList<>();
+            final String text = splitTags(constraint == null ? "" : constraint.toString(), tags);
+            // The main thread may swap the snapshot while an index is built, so an index only counts for the snapshot it was built from
+            final NameCatalog snapshot = mSnapshot;
+            NameIndex index = mIndex;
+            if (index == null || index.catalog() != snapshot)
+                mIndex = index = new NameIndex(snapshot);
+            List<String> matches;
+            if (tags.isEmpty())
+                matches = index.search(text);
+            else {
+                final Map<String, EntryMetadata> metadata = mMetadata;
+                TagIndex tagIndex = mTagIndex;
+                if (tagIndex == null || !tagIndex.isBuiltFrom(snapshot, metadata))
+                    mTagIndex = tagIndex = new TagIndex(snapshot, metadata);
+                matches = text.isEmpty() ? tagIndex.names(tags) : tagIndex.retain(index.search(text), tags);
+            }
+            FilterResults results = new FilterResults();
+            results.values = matches;
+            results.count = matches.size();
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            show((List<String>) results.values);
+        }
+    };
+
+    PasswordListAdapter(NameCatalog passwordNames) {
+        mPasswordNames = passwordNames;
+        mSnapshot = passwordNames.snapshot();
+        show(mSnapshot.names());
+    }
+
+    void setOnNameClickListener(OnNameClickListener listener) {
+        mOnClickListener = listener;
+    }
+
+    void setOnNameLongClickListener(OnNameClickListener listener) {
+        mOnLongClickListener = listener;
+    }
+
+    // The adapter keeps the map, it mustn't be modified afterwards
+    void setMetadata(Map<String, EntryMetadata> metadata) {
+        mMetadata = metadata;
+        mTagIndex = null;
+        if (mQuery.length() != 0)
+            mFilter.filter(mQuery);
+    }
+
+    // Moves the #tags of the query into tags and returns the rest
+    static String splitTags(String query, List<String> tags) {
+        if (query.indexOf('#') < 0)
+            return query;
+        StringBuilder text = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.startsWith("#")) {
+                if (word.length() > 1)
+                    tags.add(word.substring(1));
+            } else
+                text.append(text.length() == 0 ? "" : " ").append(word);
+        }
+        return text.toString();
+    }
+
+    void filter(CharSequence query, Filter.FilterListener listener) {
+        mQuery = query;
+        mFilter.filter(query, listener);
+    }
+
+    int getPosition(String name) {
+        return mShown.indexOf(name);
+    }
+
+    String getSelected() {
+        return mSelected;
+    }
+
+    void setSelected(String name) {
+        final String previous = mSelected;
+        mSelected = name;
+        for (String changed : new String[] { previous, name }) {
+            final int position = changed == null ? -1 : mDiffer.getCurrentList().indexOf(changed);
+            if (position != -1)
+                notifyItemChanged(position);
+        }
+    }
+
+    void clearSelection() {
+        setSelected(null);
+    }
+
+    // The names changed: the index is rebuilt from a copy (the list itself is only touched on the main thread) and the current filter re-applied
+    void notifyNamesChanged() {
+        mSnapshot = mPasswordNames.snapshot();
+        mIndex = null;
+        mTagIndex = null;
+        if (mSelected != null && !mPasswordNames.contains(mSelected))
+            mSelected = null;
+        if (mQuery.length() == 0)
+            show(mSnapshot.names());
+        else
+            mFilter.filter(mQuery);
+    }
+
+    private void show(List<String> names) {
+        mShown = names;
+        mDiffer.submitList(names.isEmpty() && mQuery.length() == 0 ? Collections.singletonList(NO_PASSWORDS) : names);
+    }
+
+    @Override
+    public Filter getFilter() {
+        return mFilter;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mDiffer.getCurrentList().size();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder((TextView) LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_activated_1, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        final String name = mDiffer.getCurrentList().get(position);
+        holder.mTextView.setText(name);
+        holder.mTextView.setActivated(name.equals(mSelected));
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView mTextView;
+
+        ViewHolder(TextView textView) {
+            super(textView);
+            mTextView = textView;
+            textView.setOnClickListener(v -> {
+                final String name = nameAt(getBindingAdapterPosition());
+                if (name != null && mOnClickListener != null)
+                    mOnClickListener.onClick(v, name);
+            });
+            textView.setOnLongClickListener(v -> {
+                final String name = nameAt(getBindingAdapterPosition());
+                if (name == null || mOnLongClickListener == null)
+                    return false;
+                mOnLongClickListener.onClick(v, name);
+                return true;
+            });
+        }
+
+        private String nameAt(int position) {
+            if (position == RecyclerView.NO_POSITION)
+                return null;
+            final String name = mDiffer.getCurrentList().get(position);
+            return mPasswordNames.isEmpty() && name.equals(NO_PASSWORDS) ? null : name;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package hu.cshb.passwordmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+interface PasswordStore {
+    List<String> list() throws IOException;
+
+    boolean contains(String name);
+
+    byte[] read(String name) throws IOException;
+
+    void write(String name, byte[] content) throws IOException;
+
+    boolean rename(String from, String to);
+
+    boolean delete(String name);
+
+    // Applies all updates of the batch as one transaction, durable after a single sync
+    void commit(StoreBatch batch) throws IOException;
+
+    // The file backing a single entry, or null if entries don't live in their own files
+    File file(String name);
+}
@@ -0,0 +1,119 @@
+package hu.cshb.passwordmanager;
+
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Timings of the slow paths, recorded while diagnostics are enabled: every section is a Trace section (visible in
+ * systrace/Perfetto) and a histogram of its durations, reported as count, p50, p99 and max.
+ * Histograms have 4 buckets per power of two, so percentiles are within 25% of the real value; recording is a few
+ * atomic increments. Disabled, start() is one volatile read and stop() returns right away.
+ * A section has to be stopped on the thread that started it.
+ */
+final class Perf {
+    static volatile boolean sEnabled;
+
+    private static final int SUB_BUCKETS = 4;
+    private static final Map<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+
+    private static final class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            long current;
+            do {
+                current = max.get();
+            } while (nanos > current && !max.compareAndSet(current, nanos));
+        }
+
+        // Upper bound of the bucket holding the given fraction of the samples
+        long percentile(double fraction) {
+            final long rank = (long) Math.ceil(count.get() * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        private static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS)
+                return (int) Math.max(0, nanos);
+            final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return exponent * SUB_BUCKETS + (int) ((nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int bucket) {
+            final int exponent = bucket / SUB_BUCKETS;
+            if (exponent < 2)
+                return bucket;
+            return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (exponent - 2)) - 1;
+        }
+    }
+
+    private Perf() {
+    }
+
+    // Returns the start time to hand to stop(), 0 if diagnostics are off
+    static long start(String section) {
+        if (!sEnabled)
+            return 0;
+        Trace.beginSection(section);
+        return System.nanoTime();
+    }
+
+    static void stop(String section, long start) {
+        if (start == 0)
+            return;
+        final long elapsed = System.nanoTime() - start;
+        Trace.endSection();
+        Histogram histogram = sHistograms.get(section);
+        if (histogram == null) {
+            sHistograms.putIfAbsent(section, new Histogram());
+            histogram = sHistograms.get(section);
+        }
+        histogram.record(elapsed);
+    }
+
+    static void reset() {
+        sHistograms.clear();
+    }
+
+    static boolean isEmpty() {
+        return sHistograms.isEmpty();
+    }
+
+    static String report() {
+        List<String> sections = new ArrayList<>(sHistograms.keySet());
+        Collections.sort(sections);
+        StringBuilder report = new StringBuilder(String.format(Locale.US, "%-16s %7s %10s %10s %10s\n", "section", "count", "p50", "p99", "max"));
+        for (String section : sections) {
+            final Histogram histogram = sHistograms.get(section);
+            report.append(String.format(Locale.US, "%-16s %7d %10s %10s %10s\n", section, histogram.count.get(),
+                    format(histogram.percentile(0.5)), format(histogram.percentile(0.99)), format(histogram.max.get())));
+        }
+        return report.toString();
+    }
+
+    private static String format(long nanos) {
+        if (nanos < 1000000)
+            return String.format(Locale.US, "%.1f us", nanos / 1e3);
+        if (nanos < 1000000000)
+            return String.format(Locale.US, "%.1f ms", nanos / 1e6);
+        return String.format(Locale.US, "%.2f s", nanos / 1e9);
+    }
+}
@@ -0,0 +1,285 @@
+package hu.cshb.passwordmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Changes the master password of every entry that opens with the old one, one entry at a time from several workers.
+ * Re-encrypted entries are committed to the store in transactions of COMMIT_EVERY entries, so at any moment each is
+ * readable under exactly one of the two passwords, and once committed their names are appended to the journal:
+ *   magic, length and content of a check value encrypted under the new password, then the re-keyed names
+ * An interrupted job leaves the journal behind. Running it again with the same new password skips the journaled names;
+ * an entry written but not yet journaled is recognised because it already opens with the new password. A different new
+ * password is only refused once names are journaled, until the interrupted job is discarded.
+ * Shift-encoded entries can't tell a wrong master password from the right one, so they're only included on request.
+ */
+class Rekey implements Closeable {
+    static final String JOURNAL = "rekey.journal";
+
+    private static final int MAGIC = 0x5057524B; // "PWRK"
+    private static final char[] CHECK = { 'r', 'e', 'k', 'e', 'y' };
+    private static final int COMMIT_EVERY = 64;
+
+    private final File mJournalFile;
+    private final PasswordStore mStore;
+    private final char[] mOldPassword;
+    private final byte[] mOldPasswordUtf8;
+    private final byte[] mNewPasswordUtf8;
+    private final byte[] mSalt;
+    private final int mIterations;
+    private final boolean mLegacy;
+    private final Map<ByteBuffer, byte[]> mOldKeys = new HashMap<>();
+    private final Set<String> mJournaled = new HashSet<>();
+    private byte[] mNewKey;
+    private DataOutputStream mJournal;
+    private StoreBatch mPending = new StoreBatch();
+    private final List<String> mPendingNames = new ArrayList<>();
+
+    final AtomicInteger rekeyed = new AtomicInteger();
+    final AtomicInteger skipped = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    // Takes over the passwords, they're wiped by close()
+    Rekey(File directory, PasswordStore store, char[] oldPassword, char[] newPassword, byte[] salt, int iterations, boolean legacy) {
+        mJournalFile = new File(directory, JOURNAL);
+        mStore = store;
+        mOldPassword = oldPassword;
+        mOldPasswordUtf8 = PasswordCipher.encodeUtf8(CharBuffer.wrap(oldPassword));
+        mNewPasswordUtf8 = PasswordCipher.encodeUtf8(CharBuffer.wrap(newPassword));
+        Arrays.fill(newPassword, '\0');
+        mSalt = salt;
+        mIterations = iterations;
+        mLegacy = legacy;
+    }
+
+    // Refused by open() when the interrupted job was to another new password and already moved entries to it
+    static class DifferentPasswordException extends IOException {
+        final int journaled;
+
+        DifferentPasswordException(int journaled) {
+            super("The interrupted change was to a different new master password");
+            this.journaled = journaled;
+        }
+    }
+
+    // Set while a job has the journal open, so a recreated activity doesn't take it for an interrupted one
+    private static volatile boolean sOpen;
+
+    static boolean isPending(File directory) {
+        return !sOpen && new File(directory, JOURNAL).exists();
+    }
+
+    // How many entries the interrupted job already moved to its new password; reads the journal, call it on a worker thread
+    static int countJournaled(File directory) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(DirectoryStore.readFully(new File(directory, JOURNAL))));
+        try {
+            readCheck(in);
+        } catch (EOFException eofe) {
+            return 0;
+        }
+        final Set<String> names = new HashSet<>();
+        readNames(in, names);
+        return names.size();
+    }
+
+    // Abandons the interrupted job, the entries it already re-keyed keep its new password
+    static void discard(File directory) throws IOException {
+        final File journal = new File(directory, JOURNAL);
+        if (journal.exists() && !journal.delete())
+            throw new IOException("Couldn't remove " + JOURNAL);
+    }
+
+    /*
+     * Derives the new key and starts the journal, or picks up the one left by an interrupted job, which must have had
+     * the same new password if it journaled anything. Takes about one key derivation, call it on a worker thread.
+     */
+    void open() throws IOException {
+        mNewKey = PasswordCipher.deriveKey(mNewPasswordUtf8, mSalt, mIterations);
+        if (!mJournalFile.exists() || !readJournal()) {
+            final byte[] check = PasswordCipher.encrypt(mNewKey, mSalt, mIterations, CHECK);
+            try (FileOutputStream os = new FileOutputStream(mJournalFile)) {
+                DataOutputStream out = new DataOutputStream(os);
+                out.writeInt(MAGIC);
+                out.writeInt(check.length);
+                out.write(check);
+                out.flush();
+                os.getFD().sync();
+            }
+        }
+        mJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile, true)));
+        sOpen = true;
+    }
+
+    // False if there's nothing to pick up and the job starts over with a new journal
+    private boolean readJournal() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(DirectoryStore.readFully(mJournalFile)));
+        final byte[] check;
+        try {
+            check = readCheck(in);
+        } catch (EOFException eofe) {
+            // Torn while it was being started, nothing was journaled
+            return false;
+        }
+        readNames(in, mJournaled);
+        final char[] decrypted = PasswordCipher.parse(check).decrypt(mNewKey);
+        if (decrypted != null) {
+            Arrays.fill(decrypted, '\0');
+            return true;
+        }
+        if (mJournaled.isEmpty())
+            return false;
+        final int journaled = mJournaled.size();
+        mJournaled.clear();
+        throw new DifferentPasswordException(journaled);
+    }
+
+    private static byte[] readCheck(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException(JOURNAL + " is not a re-key journal");
+        final int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new EOFException();
+        final byte[] check = new byte[length];
+        in.readFully(check);
+        return check;
+    }
+
+    // A torn name at the end is dropped, that entry is recognised by its new key instead
+    private static void readNames(DataInputStream in, Set<String> names) throws IOException {
+        try {
+            while (in.available() > 0)
+                names.add(in.readUTF());
+        } catch (EOFException eofe) {
+
+        }
+    }
+
+    // Called from the workers, one entry each
+    void process(String name) {
+        if (mJournaled.contains(name)) {
+            rekeyed.incrementAndGet();
+            return;
+        }
+        char[] password = null;
+        try {
+            final byte[] content = mStore.read(name);
+            if (PasswordCipher.isEncrypted(content)) {
+                final PasswordCipher.Entry entry = PasswordCipher.parse(content);
+                password = entry.decrypt(oldKey(entry.salt, entry.iterations));
+                if (password == null) {
+                    // Either already re-keyed by the interrupted job, or saved under yet another master password
+                    final char[] current = entry.iterations == mIterations && Arrays.equals(entry.salt, mSalt) ? entry.decrypt(mNewKey) : null;
+                    if (current == null)
+                        skipped.incrementAndGet();
+                    else {
+                        Arrays.fill(current, '\0');
+                        journal(name);
+                        rekeyed.incrementAndGet();
+                    }
+                    return;
+                }
+            } else if (mLegacy) {
+                final char[] coded = ShiftCodec.readCoded(content);
+                ShiftCodec codec = new ShiftCodec();
+                codec.decode(coded, CharBuffer.wrap(mOldPassword));
+                password = codec.toCharArray();
+                codec.close();
+                Arrays.fill(coded, '\0');
+            } else {
+                skipped.incrementAndGet();
+                return;
+            }
+            queue(name, PasswordCipher.encrypt(mNewKey, mSalt, mIterations, password));
+        } catch (IOException ioe) {
+            failed.incrementAndGet();
+        } finally {
+            if (password != null)
+                Arrays.fill(password, '\0');
+        }
+    }
+
+    // Entries usually share one salt, so this is one derivation for the whole job
+    private synchronized byte[] oldKey(byte[] salt, int iterations) throws IOException {
+        final ByteBuffer id = ByteBuffer.allocate(salt.length + 4).put(salt).putInt(iterations);
+        id.flip();
+        byte[] key = mOldKeys.get(id);
+        if (key == null)
+            mOldKeys.put(id, key = PasswordCipher.deriveKey(mOldPasswordUtf8, salt, iterations));
+        return key;
+    }
+
+    private synchronized void queue(String name, byte[] content) {
+        mPending.write(name, content);
+        mPendingNames.add(name);
+        if (mPendingNames.size() >= COMMIT_EVERY)
+            commitPending();
+    }
+
+    // One store sync for the whole group; the journal only learns about entries that are durably re-keyed
+    private synchronized void commitPending() {
+        if (mPendingNames.isEmpty())
+            return;
+        try {
+            mStore.commit(mPending);
+            rekeyed.addAndGet(mPendingNames.size());
+            for (String name : mPendingNames)
+                journal(name);
+        } catch (IOException ioe) {
+            failed.addAndGet(mPendingNames.size());
+        }
+        mPending = new StoreBatch();
+        mPendingNames.clear();
+    }
+
+    // Not synced: a lost name only costs one extra decryption on resume, never a second re-key
+    private synchronized void journal(String name) {
+        try {
+            mJournal.writeUTF(name);
+            mJournal.flush();
+        } catch (IOException ioe) {
+            // Same as a lost name
+        }
+    }
+
+    // Ends the job; the journal is kept if some entries couldn't be read or written, so they can be retried
+    void finish() throws IOException {
+        commitPending();
+        close();
+        if (failed.get() == 0 && !mJournalFile.delete())
+            throw new IOException("Couldn't remove " + JOURNAL);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        Arrays.fill(mOldPassword, '\0');
+        Arrays.fill(mOldPasswordUtf8, (byte) 0);
+        Arrays.fill(mNewPasswordUtf8, (byte) 0);
+        if (mNewKey != null)
+            Arrays.fill(mNewKey, (byte) 0);
+        for (byte[] key : mOldKeys.values())
+            Arrays.fill(key, (byte) 0);
+        mOldKeys.clear();
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+            sOpen = false;
+        }
+    }
+}
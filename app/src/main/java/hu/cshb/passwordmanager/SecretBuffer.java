@@ -0,0 +1,179 @@
+package hu.cshb.passwordmanager;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Plaintext (decoded, decrypted or generated passwords) kept in direct memory instead of Strings or heap arrays.
+ * The garbage collector never moves or copies direct memory, so wiping it really removes the secret; it's wiped
+ * whenever the contents shrink or change hands and when the buffer is closed.
+ * The memory comes from a small pool of power-of-two sized blocks, so reading one password after the other, or
+ * generating one after the other, doesn't allocate.
+ * A SecretBuffer is a CharSequence and is handed to EditText and Editable.replace() as one, which copy it char by char.
+ * toString() would copy it into a String that can't be wiped, nothing here calls it.
+ */
+final class SecretBuffer implements CharSequence, Closeable {
+    private static final int MIN_CAPACITY = 64;
+    private static final int POOL_SIZE = 8;
+    private static final List<CharBuffer> sPool = new ArrayList<>();
+
+    private CharBuffer mChars;
+    private int mLength;
+
+    private SecretBuffer(CharBuffer chars) {
+        mChars = chars;
+    }
+
+    // An empty buffer with room for at least capacity chars
+    static SecretBuffer obtain(int capacity) {
+        return new SecretBuffer(allocate(capacity));
+    }
+
+    private static CharBuffer allocate(int capacity) {
+        synchronized (sPool) {
+            for (int i = 0; i < sPool.size(); ++i)
+                if (sPool.get(i).capacity() >= capacity)
+                    return sPool.remove(i);
+        }
+        int size = MIN_CAPACITY;
+        while (size < capacity)
+            size <<= 1;
+        return ByteBuffer.allocateDirect(size * 2).asCharBuffer();
+    }
+
+    // Only wiped memory goes back
+    private static void recycle(CharBuffer chars) {
+        synchronized (sPool) {
+            if (sPool.size() < POOL_SIZE)
+                sPool.add(chars);
+        }
+    }
+
+    // Room for capacity chars, the contents are kept
+    void ensureCapacity(int capacity) {
+        if (capacity <= mChars.capacity())
+            return;
+        final CharBuffer bigger = allocate(capacity);
+        for (int i = 0; i < mLength; ++i) {
+            bigger.put(i, mChars.get(i));
+            mChars.put(i, '\0');
+        }
+        recycle(mChars);
+        mChars = bigger;
+    }
+
+    void put(int index, char c) {
+        mChars.put(index, c);
+    }
+
+    // Ends the contents after length chars written with put(), anything beyond is wiped
+    void setLength(int length) {
+        for (int i = length; i < mLength; ++i)
+            mChars.put(i, '\0');
+        mLength = length;
+    }
+
+    // Replaces the contents, the caller wipes its copy
+    void set(char[] chars) {
+        ensureCapacity(chars.length);
+        for (int i = 0; i < chars.length; ++i)
+            mChars.put(i, chars[i]);
+        setLength(chars.length);
+    }
+
+    void set(CharSequence text) {
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); ++i)
+            mChars.put(i, text.charAt(i));
+        setLength(text.length());
+    }
+
+    // Replaces the contents with the decoded UTF-8, straight into the buffer; malformed input is replaced as by String
+    void setUtf8(byte[] utf8) {
+        // Never more chars than bytes
+        ensureCapacity(utf8.length);
+        final CharBuffer out = mChars.duplicate();
+        out.clear();
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoder.decode(ByteBuffer.wrap(utf8), out, true);
+        decoder.flush(out);
+        setLength(out.position());
+    }
+
+    // A copy on the heap for APIs that need an array, the caller wipes it
+    char[] toCharArray() {
+        final char[] chars = new char[mLength];
+        for (int i = 0; i < mLength; ++i)
+            chars[i] = mChars.get(i);
+        return chars;
+    }
+
+    boolean contentEquals(CharSequence text) {
+        return contentEquals(this, text);
+    }
+
+    // Compares e.g. two password fields without building a String from either
+    static boolean contentEquals(CharSequence a, CharSequence b) {
+        if (a.length() != b.length())
+            return false;
+        for (int i = 0; i < a.length(); ++i)
+            if (a.charAt(i) != b.charAt(i))
+                return false;
+        return true;
+    }
+
+    void wipe() {
+        setLength(0);
+    }
+
+    // Wipes the contents and gives the memory back to the pool, the buffer can't be used afterwards
+    @Override
+    public void close() {
+        if (mChars == null)
+            return;
+        wipe();
+        recycle(mChars);
+        mChars = null;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        return mChars.get(index);
+    }
+
+    // A read-only view of the same memory, nothing is copied
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end)
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + mLength);
+        final CharBuffer view = mChars.asReadOnlyBuffer();
+        view.limit(end).position(start);
+        return view.slice();
+    }
+
+    @Override
+    public String toString() {
+        final char[] chars = toCharArray();
+        try {
+            return new String(chars);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+}
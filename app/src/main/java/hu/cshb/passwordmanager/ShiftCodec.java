@@ -0,0 +1,78 @@
+package hu.cshb.passwordmanager;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * The original password encoding: every character is shifted by the matching character of the master password
+ * (repeated as needed) within the printable range CHAR_LOWEST..CHAR_HIGHEST.
+ * Decoding writes in place into a SecretBuffer owned by the codec and reused from one keystroke to the next, so the
+ * Read tab doesn't allocate while the master password is typed and the plaintext never reaches the heap. Stale
+ * contents are wiped, never just dropped; close() hands the buffer back.
+ */
+class ShiftCodec implements Closeable {
+    static final char CHAR_LOWEST = 33;
+    static final char CHAR_HIGHEST = 126;
+
+    private final SecretBuffer mBuffer = SecretBuffer.obtain(32);
+
+    static void encode(char[] password, CharSequence masterPassword) {
+        final int masterLength = masterPassword.length();
+        for (int i = 0, m = 0; i < password.length; ++i, m = m + 1 == masterLength ? 0 : m + 1)
+            password[i] = (char) (password[i] + masterPassword.charAt(m) - CHAR_LOWEST > CHAR_HIGHEST ?
+                                  password[i] + masterPassword.charAt(m) - CHAR_HIGHEST - 1 :
+                                  password[i] + masterPassword.charAt(m) - CHAR_LOWEST);
+    }
+
+    // The coded password is the first line of a shift-encoded file
+    static char[] readCoded(byte[] content) {
+        int end = 0;
+        while (end < content.length && content[end] != '\n' && content[end] != '\r')
+            ++end;
+        CharBuffer decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(content, 0, end));
+        final char[] coded = new char[decoded.remaining()];
+        decoded.get(coded);
+        return coded;
+    }
+
+    // Decodes into buffer(), masterPassword must not be empty
+    void decode(char[] coded, CharSequence masterPassword) {
+        mBuffer.ensureCapacity(coded.length);
+        final int masterLength = masterPassword.length();
+        for (int i = 0, m = 0; i < coded.length; ++i, m = m + 1 == masterLength ? 0 : m + 1)
+            mBuffer.put(i, (char) (coded[i] - masterPassword.charAt(m) + CHAR_LOWEST < CHAR_LOWEST ?
+                                   coded[i] - masterPassword.charAt(m) + CHAR_HIGHEST + 1 :
+                                   coded[i] - masterPassword.charAt(m) + CHAR_LOWEST));
+        mBuffer.setLength(coded.length);
+    }
+
+    // Also where PasswordCipher decrypts to, see PasswordCipher.Entry.decrypt(byte[], SecretBuffer)
+    SecretBuffer buffer() {
+        return mBuffer;
+    }
+
+    int length() {
+        return mBuffer.length();
+    }
+
+    // Whether text is exactly the decoded password, without building a String from either
+    boolean contentEquals(CharSequence text) {
+        return mBuffer.contentEquals(text);
+    }
+
+    // A copy for APIs that need an array, the caller wipes it
+    char[] toCharArray() {
+        return mBuffer.toCharArray();
+    }
+
+    void wipe() {
+        mBuffer.wipe();
+    }
+
+    @Override
+    public void close() {
+        mBuffer.close();
+    }
+}
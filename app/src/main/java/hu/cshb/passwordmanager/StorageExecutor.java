@@ -0,0 +1,207 @@
+package hu.cshb.passwordmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs storage operations on a small pool of background threads and posts the results back to the main thread
+class StorageExecutor {
+    interface Task<T> {
+        T run() throws IOException;
+    }
+
+    interface Callback<T> {
+        void onResult(T result);
+    }
+
+    interface Item {
+        void process(int index);
+    }
+
+    static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Future<?>> mLatestRequests = new HashMap<>();
+    private final Map<String, Integer> mGenerations = new HashMap<>();
+    private final Map<String, Runnable> mPendingWrites = new HashMap<>();
+    private final Set<String> mRunningWrites = new HashSet<>();
+    private volatile boolean mShutdown;
+
+    StorageExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "storage-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    <T> Future<?> submit(Task<T> task, Callback<T> onResult, Callback<IOException> onError) {
+        return mExecutor.submit(() -> {
+            try {
+                final T result = task.run();
+                post(() -> onResult.onResult(result));
+            } catch (IOException ioe) {
+                post(() -> onError.onResult(ioe));
+            } catch (RuntimeException re) {
+                // Reported like any other failure, the Future would swallow it and the caller would wait forever
+                post(() -> onError.onResult(new IOException(re.getMessage() != null ? re.getMessage() : re.toString(), re)));
+            }
+        });
+    }
+
+    // Like submit(), but cancels the previous request with the same key; results of superseded requests are dropped
+    <T> void submitLatest(String key, Task<T> task, Callback<T> onResult, Callback<IOException> onError) {
+        final int generation;
+        synchronized (mLatestRequests) {
+            Future<?> previous = mLatestRequests.get(key);
+            if (previous != null)
+                previous.cancel(true);
+            Integer previousGeneration = mGenerations.get(key);
+            generation = previousGeneration == null ? 0 : previousGeneration + 1;
+            mGenerations.put(key, generation);
+            mLatestRequests.put(key, submit(task,
+                    result -> {
+                        if (isLatest(key, generation))
+                            onResult.onResult(result);
+                    },
+                    ioe -> {
+                        if (isLatest(key, generation))
+                            onError.onResult(ioe);
+                    }));
+        }
+    }
+
+    void forEach(int count, Item item, Callback<Integer> onProgress, Runnable onDone) {
+        forEach(count, item, onProgress, onDone, null);
+    }
+
+    /*
+     * Processes items 0..count-1 on at most THREADS - 1 workers, so one thread always stays free for
+     * interactive requests. Each worker pulls the next index when it's done with the previous one.
+     * Progress (number of finished items) and completion are posted to the main thread.
+     * onEnd runs on the last worker before onDone is posted, and unlike onDone it also runs after shutdown(); that's
+     * where whatever the items share is released.
+     */
+    void forEach(int count, Item item, Callback<Integer> onProgress, Runnable onDone, Runnable onEnd) {
+        if (count == 0) {
+            if (onEnd != null)
+                onEnd.run();
+            post(onDone);
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger(), finished = new AtomicInteger();
+        final AtomicInteger progressPending = new AtomicInteger();
+        final int workers = Math.min(count, THREADS - 1);
+        final AtomicInteger running = new AtomicInteger(workers);
+        for (int w = 0; w < workers; ++w) {
+            mExecutor.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < count) {
+                    try {
+                        item.process(index);
+                    } catch (RuntimeException re) {
+                        // One broken item mustn't stall the whole batch
+                    }
+                    final int done = finished.incrementAndGet();
+                    if (done < count && progressPending.getAndIncrement() == 0) {
+                        // Coalesce progress updates, at most one is queued on the main thread at a time
+                        post(() -> {
+                            progressPending.set(0);
+                            onProgress.onResult(finished.get());
+                        });
+                    }
+                }
+                if (running.decrementAndGet() > 0)
+                    return;
+                if (onEnd != null)
+                    onEnd.run();
+                post(onDone);
+            });
+        }
+    }
+
+    /*
+     * For writes that persist a snapshot to a file: writes with the same key never overlap, they run one after the
+     * other on one worker. A write queued behind a running one replaces any other still waiting, so the file only
+     * gets the latest snapshot next. Unlike submitLatest(), nothing is cancelled half way.
+     */
+    void persistLatest(String key, Task<?> write, Callback<IOException> onError) {
+        final Runnable run = () -> {
+            try {
+                write.run();
+            } catch (IOException ioe) {
+                post(() -> onError.onResult(ioe));
+            } catch (RuntimeException re) {
+                post(() -> onError.onResult(new IOException(re.getMessage() != null ? re.getMessage() : re.toString(), re)));
+            }
+        };
+        synchronized (mPendingWrites) {
+            mPendingWrites.put(key, run);
+            if (!mRunningWrites.add(key))
+                return;
+        }
+        mExecutor.execute(() -> {
+            while (true) {
+                final Runnable next;
+                synchronized (mPendingWrites) {
+                    next = mPendingWrites.remove(key);
+                    if (next == null) {
+                        mRunningWrites.remove(key);
+                        return;
+                    }
+                }
+                next.run();
+            }
+        });
+    }
+
+    void cancel(String key) {
+        synchronized (mLatestRequests) {
+            Future<?> previous = mLatestRequests.remove(key);
+            if (previous != null)
+                previous.cancel(true);
+            Integer previousGeneration = mGenerations.get(key);
+            mGenerations.put(key, previousGeneration == null ? 0 : previousGeneration + 1);
+        }
+    }
+
+    private boolean isLatest(String key, int generation) {
+        synchronized (mLatestRequests) {
+            Integer latest = mGenerations.get(key);
+            if (latest == null || latest != generation)
+                return false;
+            mLatestRequests.remove(key);
+            return true;
+        }
+    }
+
+    void post(Runnable runnable) {
+        mMainHandler.post(() -> {
+            if (!mShutdown)
+                runnable.run();
+        });
+    }
+
+    // Queued writes still complete, but no more results are delivered
+    void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,36 @@
+package hu.cshb.passwordmanager;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Updates collected by a bulk operation (import, re-key, conversion), applied by PasswordStore.commit() as one transaction
+final class StoreBatch {
+    private final Map<String, byte[]> mWrites = new LinkedHashMap<>();
+    private final Set<String> mDeletes = new LinkedHashSet<>();
+
+    // Safe to call from several workers
+    synchronized void write(String name, byte[] content) {
+        mDeletes.remove(name);
+        mWrites.put(name, content);
+    }
+
+    synchronized void delete(String name) {
+        mWrites.remove(name);
+        mDeletes.add(name);
+    }
+
+    synchronized int size() {
+        return mWrites.size() + mDeletes.size();
+    }
+
+    synchronized Map<String, byte[]> writes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(mWrites));
+    }
+
+    synchronized Set<String> deletes() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(mDeletes));
+    }
+}
@@ -0,0 +1,177 @@
+package hu.cshb.passwordmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Write-ahead log of a DirectoryStore:
+ *   magic, then transactions of PUT (name, content) and DELETE (name) records, each closed by a COMMIT record
+ * A transaction is appended and synced once, however many entries it touches, before the store applies it to the
+ * .pwd files. Records carry whole contents, so replaying a committed transaction is idempotent; a transaction
+ * without its COMMIT (torn by a crash) is cut off. The log is emptied at every checkpoint of the store.
+ * An append finds the end of the log in the file itself if it isn't where this instance left it.
+ */
+class StoreJournal {
+    static final String FILENAME = "store.journal";
+
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+    private static final byte OP_COMMIT = 3;
+
+    private static final int MAGIC = 0x5057574A; // "PWWJ"
+
+    static final class Op {
+        final byte type;
+        final String name;
+        final byte[] content;
+
+        Op(byte type, String name, byte[] content) {
+            this.type = type;
+            this.name = name;
+            this.content = content;
+        }
+    }
+
+    /*
+     * The store is opened once per process (see TrackedStore.shared()), so this is a second line of defence: appends
+     * hold the file lock, and this lock as well, since the file lock belongs to the whole process.
+     */
+    private static final Object sLock = new Object();
+
+    private final File mFile;
+    private long mLength;
+
+    StoreJournal(File file) {
+        mFile = file;
+    }
+
+    // The committed transactions, in order; anything after the last COMMIT is truncated
+    List<Op> recover() throws IOException {
+        List<Op> committed = new ArrayList<>();
+        synchronized (sLock) {
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                raf.getChannel().lock();
+                final long validLength = scan(raf, committed);
+                if (validLength < 0) {
+                    reset(raf);
+                    return committed;
+                }
+                if (validLength != raf.length())
+                    raf.setLength(validLength);
+                mLength = validLength;
+            }
+        }
+        return committed;
+    }
+
+    // Appends the operations as one transaction, durable once this returns
+    void append(List<Op> ops) throws IOException {
+        ByteArrayOutputStream transaction = new ByteArrayOutputStream();
+        for (Op op : ops)
+            transaction.write(record(op.type, op.name, op.content));
+        DataOutputStream out = new DataOutputStream(transaction);
+        out.writeByte(OP_COMMIT);
+        out.writeInt(ops.size());
+        synchronized (sLock) {
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                raf.getChannel().lock();
+                long length = raf.length();
+                if (length != mLength) {
+                    // Not what this instance left behind: only a torn transaction is cut off, never a committed one
+                    length = scan(raf, null);
+                    if (length < 0) {
+                        reset(raf);
+                        length = 4;
+                    } else if (length != raf.length())
+                        raf.setLength(length);
+                }
+                raf.seek(length);
+                raf.write(transaction.toByteArray());
+                raf.getFD().sync();
+                mLength = length + transaction.size();
+            }
+        }
+    }
+
+    /*
+     * The length up to the end of the last COMMIT, adding the committed operations to committed unless it's null;
+     * -1 if the file isn't a journal.
+     */
+    private static long scan(RandomAccessFile raf, List<Op> committed) throws IOException {
+        final byte[] log = new byte[(int) raf.length()];
+        raf.seek(0);
+        raf.readFully(log);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(log));
+        if (log.length < 4 || in.readInt() != MAGIC)
+            return -1;
+        List<Op> transaction = new ArrayList<>();
+        long validLength = 4;
+        try {
+            while (in.available() > 0) {
+                final byte type = in.readByte();
+                if (type == OP_COMMIT) {
+                    if (in.readInt() != transaction.size())
+                        break;
+                    if (committed != null)
+                        committed.addAll(transaction);
+                    transaction.clear();
+                    validLength = log.length - in.available();
+                    continue;
+                }
+                final String name = in.readUTF();
+                byte[] content = null;
+                if (type == OP_PUT) {
+                    content = new byte[in.readInt()];
+                    in.readFully(content);
+                } else if (type != OP_DELETE)
+                    break;
+                transaction.add(new Op(type, name, content));
+            }
+        } catch (EOFException eofe) {
+
+        }
+        return validLength;
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    // Empties the log, after the store has made everything in it durable on its own
+    void reset() throws IOException {
+        synchronized (sLock) {
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                raf.getChannel().lock();
+                reset(raf);
+            }
+        }
+    }
+
+    private void reset(RandomAccessFile raf) throws IOException {
+        raf.setLength(0);
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.getFD().sync();
+        mLength = 4;
+    }
+
+    private static byte[] record(byte type, String name, byte[] content) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(type);
+        out.writeUTF(name);
+        if (type == OP_PUT) {
+            out.writeInt(content.length);
+            out.write(content);
+        }
+        return record.toByteArray();
+    }
+}
@@ -0,0 +1,81 @@
+package hu.cshb.passwordmanager;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Tag filter for the Read tab: one bitmap per tag (case-folded) with a bit per name of a NameCatalog snapshot, so a
+ * combination of tags is a few word-wise ANDs over n/64 longs however many entries there are.
+ * Built on the Filter's worker thread from the metadata, which never involves an encrypted entry.
+ */
+class TagIndex {
+    private final NameCatalog mCatalog;
+    private final Map<String, EntryMetadata> mMetadata;
+    private final Map<String, BitSet> mBitmaps = new HashMap<>();
+
+    TagIndex(NameCatalog catalog, Map<String, EntryMetadata> metadata) {
+        mCatalog = catalog;
+        mMetadata = metadata;
+        for (int id = 0; id < catalog.size(); ++id) {
+            final EntryMetadata entry = metadata.get(catalog.get(id));
+            if (entry == null)
+                continue;
+            for (String tag : entry.tags) {
+                final String folded = NameCatalog.fold(tag);
+                BitSet bitmap = mBitmaps.get(folded);
+                if (bitmap == null)
+                    mBitmaps.put(folded, bitmap = new BitSet(catalog.size()));
+                bitmap.set(id);
+            }
+        }
+    }
+
+    // Whether the index was built from exactly these, and is still current
+    boolean isBuiltFrom(NameCatalog catalog, Map<String, EntryMetadata> metadata) {
+        return mCatalog == catalog && mMetadata == metadata;
+    }
+
+    // Ids of the names carrying every one of the tags
+    BitSet matching(Collection<String> tags) {
+        BitSet result = null;
+        for (String tag : tags) {
+            final BitSet bitmap = mBitmaps.get(NameCatalog.fold(tag));
+            if (bitmap == null)
+                return new BitSet();
+            if (result == null)
+                result = (BitSet) bitmap.clone();
+            else
+                result.and(bitmap);
+        }
+        if (result == null) {
+            result = new BitSet(mCatalog.size());
+            result.set(0, mCatalog.size());
+        }
+        return result;
+    }
+
+    // The names carrying every one of the tags, in catalog order
+    List<String> names(Collection<String> tags) {
+        final BitSet ids = matching(tags);
+        List<String> names = new ArrayList<>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+            names.add(mCatalog.get(id));
+        return names;
+    }
+
+    // Keeps the names, e.g. search results, that carry every one of the tags
+    List<String> retain(List<String> names, Collection<String> tags) {
+        final BitSet ids = matching(tags);
+        List<String> retained = new ArrayList<>();
+        for (String name : names) {
+            final int id = mCatalog.indexOf(name);
+            if (id >= 0 && ids.get(id))
+                retained.add(name);
+        }
+        return retained;
+    }
+}
@@ -0,0 +1,187 @@
+package hu.cshb.passwordmanager;
+
+import android.app.backup.BackupManager;
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A PasswordStore that records every successful update in a ChangeLog, for incremental backups, drops the AutofillIndex and reports it to onChange;
+// the entries underneath can be moved between the .pwd files and the single-file vault in place, see convert()
+class TrackedStore implements PasswordStore {
+    // Files directory -> its store, see shared()
+    private static final Map<File, TrackedStore> sShared = new HashMap<>();
+
+    private final File mDirectory;
+    private final ChangeLog mChangeLog;
+    private final Runnable mOnChange;
+    // Operations hold the read lock, convert() the write lock while it swaps mStore
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    private PasswordStore mStore;
+
+    private TrackedStore(File directory, PasswordStore store, ChangeLog changeLog, Runnable onChange) {
+        mDirectory = directory;
+        mStore = store;
+        mChangeLog = changeLog;
+        mOnChange = onChange;
+    }
+
+    /*
+     * The store over the app's files, opened once per process and shared by every activity, the backup agent and the
+     * autofill service. Each instance caches where its journal or vault ends, so a second one over the same files
+     * would cut off what the first appended.
+     */
+    static TrackedStore shared(Context context) {
+        final File directory = context.getFilesDir();
+        synchronized (sShared) {
+            TrackedStore store = sShared.get(directory);
+            if (store == null) {
+                final String packageName = context.getPackageName();
+                store = new TrackedStore(directory, open(directory), new ChangeLog(directory), () -> BackupManager.dataChanged(packageName));
+                sShared.put(directory, store);
+            }
+            return store;
+        }
+    }
+
+    private static PasswordStore open(File directory) {
+        final File vaultFile = new File(directory, VaultFile.FILENAME);
+        try {
+            return vaultFile.exists() ? new VaultFile(vaultFile) : new DirectoryStore(directory);
+        } catch (IOException ioe) {
+            return new DirectoryStore(directory);
+        }
+    }
+
+    ChangeLog changeLog() {
+        return mChangeLog;
+    }
+
+    boolean isSingleFile() {
+        mLock.readLock().lock();
+        try {
+            return mStore instanceof VaultFile;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Moves every entry between the .pwd files and the single-file vault; other operations wait until it's done
+    void convert(boolean singleFile) throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (singleFile && mStore instanceof DirectoryStore)
+                mStore = VaultFile.migrate((DirectoryStore) mStore, new File(mDirectory, VaultFile.FILENAME));
+            else if (!singleFile && mStore instanceof VaultFile)
+                mStore = VaultFile.unpack((VaultFile) mStore, mDirectory);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        mLock.readLock().lock();
+        try {
+            return mStore.list();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String name) {
+        mLock.readLock().lock();
+        try {
+            return mStore.contains(name);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        mLock.readLock().lock();
+        try {
+            return mStore.read(name);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(String name, byte[] content) throws IOException {
+        mLock.readLock().lock();
+        try {
+            mStore.write(name, content);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        changed(Collections.singletonList(name));
+    }
+
+    @Override
+    public boolean rename(String from, String to) {
+        mLock.readLock().lock();
+        try {
+            if (!mStore.rename(from, to))
+                return false;
+        } finally {
+            mLock.readLock().unlock();
+        }
+        changed(Arrays.asList(from, to));
+        return true;
+    }
+
+    @Override
+    public boolean delete(String name) {
+        mLock.readLock().lock();
+        try {
+            if (!mStore.delete(name))
+                return false;
+        } finally {
+            mLock.readLock().unlock();
+        }
+        changed(Collections.singletonList(name));
+        return true;
+    }
+
+    @Override
+    public void commit(StoreBatch batch) throws IOException {
+        mLock.readLock().lock();
+        try {
+            mStore.commit(batch);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        List<String> names = new ArrayList<>(batch.writes().keySet());
+        names.addAll(batch.deletes());
+        changed(names);
+    }
+
+    @Override
+    public File file(String name) {
+        mLock.readLock().lock();
+        try {
+            return mStore.file(name);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private void changed(List<String> names) {
+        if (names.isEmpty())
+            return;
+        mChangeLog.record(names);
+        AutofillIndex.invalidate();
+        mOnChange.run();
+    }
+}
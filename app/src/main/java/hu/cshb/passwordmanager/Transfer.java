@@ -0,0 +1,97 @@
+package hu.cshb.passwordmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Copies between files, descriptors and streams, and keeps track of the achieved throughput
+final class Transfer {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // Enough for every storage worker to hold one buffer; when the pool is empty a new buffer is allocated and pooled afterwards
+    private static final BlockingQueue<ByteBuffer> sBufferPool = new ArrayBlockingQueue<>(4);
+
+    private static final AtomicLong sBytes = new AtomicLong();
+    private static final AtomicLong sNanos = new AtomicLong();
+
+    private Transfer() {
+    }
+
+    // Zero-copy path, used when both ends are backed by real files
+    static long copy(FileChannel source, FileChannel destination) throws IOException {
+        final long start = System.nanoTime();
+        final long size = source.size();
+        long position = 0, transferred;
+        while (position < size && (transferred = source.transferTo(position, size - position, destination)) > 0)
+            position += transferred;
+        // transferTo() may stop making progress early, the rest goes through a buffer
+        if (position < size) {
+            source.position(position);
+            position += pump(source, destination);
+        }
+        record(position, start);
+        if (position < size)
+            throw new IOException("Copied only " + position + " of " + size + " bytes");
+        return position;
+    }
+
+    static long copy(InputStream source, OutputStream destination) throws IOException {
+        return copy(Channels.newChannel(source), Channels.newChannel(destination));
+    }
+
+    static long copy(ReadableByteChannel source, WritableByteChannel destination) throws IOException {
+        final long start = System.nanoTime();
+        final long total = pump(source, destination);
+        record(total, start);
+        return total;
+    }
+
+    private static long pump(ReadableByteChannel source, WritableByteChannel destination) throws IOException {
+        ByteBuffer buffer = sBufferPool.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = 0;
+        try {
+            int length;
+            while ((length = source.read(buffer)) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    destination.write(buffer);
+                buffer.clear();
+                total += length;
+            }
+        } finally {
+            buffer.clear();
+            sBufferPool.offer(buffer);
+        }
+        return total;
+    }
+
+    private static void record(long bytes, long start) {
+        sBytes.addAndGet(bytes);
+        sNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    // Throughput of all transfers since the last reset, summed over threads
+    static long bytesPerSecond() {
+        final long nanos = sNanos.get();
+        return nanos == 0 ? 0 : sBytes.get() * 1_000_000_000L / nanos;
+    }
+
+    static long bytesTransferred() {
+        return sBytes.get();
+    }
+
+    static void resetStatistics() {
+        sBytes.set(0);
+        sNanos.set(0);
+    }
+}
@@ -0,0 +1,138 @@
+package hu.cshb.passwordmanager;
+
+import android.app.PendingIntent;
+import android.app.assist.AssistStructure;
+import android.content.Intent;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.service.autofill.AutofillService;
+import android.service.autofill.Dataset;
+import android.service.autofill.FillCallback;
+import android.service.autofill.FillContext;
+import android.service.autofill.FillRequest;
+import android.service.autofill.FillResponse;
+import android.service.autofill.SaveCallback;
+import android.service.autofill.SaveRequest;
+import android.text.InputType;
+import android.util.Pair;
+import android.view.View;
+import android.view.ViewStructure;
+import android.view.autofill.AutofillId;
+import android.widget.RemoteViews;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Offers the passwords whose names match the app or web site being filled, see AutofillIndex.
+ * Nothing is decrypted to answer a request: every offered dataset is locked behind AutofillUnlockActivity, which asks
+ * for the master password and decrypts just the entry that was picked.
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+public class VaultAutofillService extends AutofillService {
+    private StorageExecutor mStorageExecutor;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mStorageExecutor = new StorageExecutor();
+    }
+
+    @Override
+    public void onDestroy() {
+        mStorageExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onFillRequest(FillRequest request, CancellationSignal cancellationSignal, FillCallback callback) {
+        final List<FillContext> contexts = request.getFillContexts();
+        final AssistStructure structure = contexts.get(contexts.size() - 1).getStructure();
+        final String packageName = structure.getActivityComponent().getPackageName();
+        final Fields fields = new Fields();
+        for (int i = 0; i < structure.getWindowNodeCount(); ++i)
+            fields.collect(structure.getWindowNodeAt(i).getRootViewNode());
+        if (fields.passwords.isEmpty() || getPackageName().equals(packageName)) {
+            callback.onSuccess(null);
+            return;
+        }
+
+        final long start = Perf.start("autofill.lookup");
+        final PasswordStore store = TrackedStore.shared(this);
+        mStorageExecutor.submit(() -> AutofillIndex.get(store).lookup(packageName, fields.webDomain), names -> {
+            Perf.stop("autofill.lookup", start);
+            if (cancellationSignal.isCanceled())
+                return;
+            if (names.isEmpty()) {
+                callback.onSuccess(null);
+                return;
+            }
+            final AutofillId[] ids = fields.passwords.toArray(new AutofillId[0]);
+            FillResponse.Builder response = new FillResponse.Builder();
+            for (int i = 0; i < names.size(); ++i) {
+                final RemoteViews presentation = presentation(names.get(i));
+                Dataset.Builder dataset = new Dataset.Builder(presentation);
+                for (AutofillId id : ids)
+                    dataset.setValue(id, null);
+                Intent unlock = new Intent(this, AutofillUnlockActivity.class)
+                        .putExtra(AutofillUnlockActivity.EXTRA_NAME, names.get(i))
+                        .putExtra(AutofillUnlockActivity.EXTRA_IDS, ids);
+                dataset.setAuthentication(PendingIntent.getActivity(this, i, unlock,
+                        PendingIntent.FLAG_CANCEL_CURRENT | PendingIntent.FLAG_IMMUTABLE).getIntentSender());
+                response.addDataset(dataset.build());
+            }
+            callback.onSuccess(response.build());
+        }, ioe -> {
+            Perf.stop("autofill.lookup", start);
+            callback.onFailure(ioe.getMessage());
+        });
+    }
+
+    @Override
+    public void onSaveRequest(SaveRequest request, SaveCallback callback) {
+        // No SaveInfo is ever sent, passwords are only saved from the app
+        callback.onSuccess();
+    }
+
+    RemoteViews presentation(String name) {
+        RemoteViews presentation = new RemoteViews(getPackageName(), android.R.layout.simple_list_item_1);
+        presentation.setTextViewText(android.R.id.text1, name);
+        return presentation;
+    }
+
+    // The password fields of the screen, and the web site it shows if it's a browser or web view
+    private static class Fields {
+        final List<AutofillId> passwords = new ArrayList<>();
+        String webDomain;
+
+        void collect(AssistStructure.ViewNode node) {
+            if (webDomain == null && node.getWebDomain() != null && !node.getWebDomain().isEmpty())
+                webDomain = node.getWebDomain();
+            if (node.getAutofillId() != null && isPassword(node))
+                passwords.add(node.getAutofillId());
+            for (int i = 0; i < node.getChildCount(); ++i)
+                collect(node.getChildAt(i));
+        }
+
+        private static boolean isPassword(AssistStructure.ViewNode node) {
+            final String[] hints = node.getAutofillHints();
+            if (hints != null)
+                for (String hint : hints)
+                    if (View.AUTOFILL_HINT_PASSWORD.equals(hint))
+                        return true;
+            final int inputType = node.getInputType();
+            final int variation = inputType & InputType.TYPE_MASK_VARIATION;
+            if ((inputType & InputType.TYPE_MASK_CLASS) == InputType.TYPE_CLASS_TEXT && (variation == InputType.TYPE_TEXT_VARIATION_PASSWORD ||
+                    variation == InputType.TYPE_TEXT_VARIATION_WEB_PASSWORD || variation == InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD))
+                return true;
+            final ViewStructure.HtmlInfo html = node.getHtmlInfo();
+            if (html != null && "input".equals(html.getTag()) && html.getAttributes() != null)
+                for (Pair<String, String> attribute : html.getAttributes())
+                    if ("type".equals(attribute.first) && "password".equals(attribute.second))
+                        return true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package hu.cshb.passwordmanager;
+
+import android.app.backup.BackupAgent;
+import android.app.backup.BackupDataInput;
+import android.app.backup.BackupDataOutput;
+import android.app.backup.FullBackupDataOutput;
+import android.os.ParcelFileDescriptor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Backs up the passwords themselves rather than the files they happen to be kept in.
+ * Key/value backups send one record per entry, keyed "pwd:<name>", and keep the digest of every record sent in the
+ * state file, so a later backup only sends the records that changed and deletes the ones that are gone.
+ * Full backups (device transfer, adb) write the whole vault as one compressed archive, SNAPSHOT, which the backup
+ * rules let through instead of the .pwd files, journals and catalog; it's imported once the restore has finished.
+ */
+public class VaultBackupAgent extends BackupAgent {
+    static final String SNAPSHOT = "backup" + Archive.EXTENSION;
+
+    private static final String KEY_PREFIX = "pwd:";
+    private static final int STATE_VERSION = 1;
+
+    @Override
+    public void onBackup(ParcelFileDescriptor oldState, BackupDataOutput data, ParcelFileDescriptor newState) throws IOException {
+        final PasswordStore store = openStore();
+        final Map<String, String> sent = readState(oldState);
+        Map<String, String> state = new HashMap<>();
+        for (String name : store.list()) {
+            final byte[] content = store.read(name);
+            final String digest = Archive.digest(content);
+            state.put(name, digest);
+            if (digest.equals(sent.remove(name)))
+                continue;
+            data.writeEntityHeader(KEY_PREFIX + name, content.length);
+            data.writeEntityData(content, content.length);
+        }
+        // What's left was deleted since the last backup
+        for (String name : sent.keySet())
+            data.writeEntityHeader(KEY_PREFIX + name, -1);
+        writeState(newState, state);
+    }
+
+    @Override
+    public void onRestore(BackupDataInput data, int appVersionCode, ParcelFileDescriptor newState) throws IOException {
+        StoreBatch batch = new StoreBatch();
+        Map<String, String> state = new HashMap<>();
+        while (data.readNextHeader()) {
+            final String key = data.getKey();
+            // The key becomes a file name, a tampered transport mustn't reach outside the vault with it
+            if (!key.startsWith(KEY_PREFIX) || data.getDataSize() < 0 || !DirectoryStore.isValidName(key.substring(KEY_PREFIX.length()))) {
+                data.skipEntityData();
+                continue;
+            }
+            final byte[] content = new byte[data.getDataSize()];
+            int offset = 0, length;
+            while (offset < content.length && (length = data.readEntityData(content, offset, content.length - offset)) > 0)
+                offset += length;
+            final String name = key.substring(KEY_PREFIX.length());
+            batch.write(name, content);
+            state.put(name, Archive.digest(content));
+        }
+        openStore().commit(batch);
+        writeState(newState, state);
+    }
+
+    @Override
+    public void onFullBackup(FullBackupDataOutput data) throws IOException {
+        final PasswordStore store = openStore();
+        final File snapshot = new File(getFilesDir(), SNAPSHOT);
+        try {
+            try (FileOutputStream os = new FileOutputStream(snapshot)) {
+                Archive.write(os, store, store.list(), Collections.emptyList(), true);
+            }
+            // Walks the files dir as the backup rules say, which only include the snapshot and the preferences
+            super.onFullBackup(data);
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Override
+    public void onRestoreFinished() {
+        final File snapshot = new File(getFilesDir(), SNAPSHOT);
+        if (!snapshot.exists())
+            return;
+        try (InputStream is = new FileInputStream(snapshot)) {
+            final Archive.Contents contents = Archive.read(is);
+            StoreBatch batch = new StoreBatch();
+            for (Map.Entry<String, byte[]> entry : contents.entries.entrySet())
+                batch.write(entry.getKey(), entry.getValue());
+            openStore().commit(batch);
+        } catch (IOException ioe) {
+            // Nothing restored, the snapshot is dropped all the same so it isn't imported over newer passwords later
+        }
+        snapshot.delete();
+    }
+
+    // The process-wide store, so the agent never journals into the files next to an open activity's instance
+    private PasswordStore openStore() {
+        return TrackedStore.shared(this);
+    }
+
+    // name -> digest of the record last sent; an unreadable state just means everything is sent again
+    private static Map<String, String> readState(ParcelFileDescriptor oldState) {
+        Map<String, String> state = new HashMap<>();
+        if (oldState == null)
+            return state;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(oldState.getFileDescriptor()));
+            if (in.readInt() != STATE_VERSION)
+                return state;
+            for (int i = in.readInt(); i > 0; --i)
+                state.put(in.readUTF(), in.readUTF());
+        } catch (IOException ioe) {
+            state.clear();
+        }
+        return state;
+    }
+
+    private static void writeState(ParcelFileDescriptor newState, Map<String, String> state) throws IOException {
+        OutputStream os = new FileOutputStream(newState.getFileDescriptor());
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(STATE_VERSION);
+        out.writeInt(state.size());
+        for (Map.Entry<String, String> entry : state.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,276 @@
+package hu.cshb.passwordmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * All entries packed into a single file:
+ *   header:  magic, version, entry count
+ *   index:   entry count * (name, offset, length), offsets relative to the start of the records
+ *   records: the encoded passwords, back to back
+ *   log:     PUT/DELETE/RENAME records appended by updates since the last compaction
+ * The whole file is read with one sequential read, updates are appended in place.
+ */
+class VaultFile implements PasswordStore {
+    static final String FILENAME = "passwords.vault";
+
+    private static final int MAGIC = 0x50574456; // "PWDV"
+    private static final short VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_RENAME = 3;
+
+    // Compact once the log holds more records than this and more than there are live entries
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private final File mFile;
+    private final Map<String, byte[]> mEntries = new HashMap<>();
+    private long mValidLength;
+    private int mLogRecords;
+
+    VaultFile(File file) throws IOException {
+        mFile = file;
+        if (file.exists())
+            load();
+        else
+            compact();
+    }
+
+    private void load() throws IOException {
+        final byte[] content = DirectoryStore.readFully(mFile);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        if (content.length < 10 || in.readInt() != MAGIC)
+            throw new IOException(mFile.getName() + " is not a password vault");
+        if (in.readShort() != VERSION)
+            throw new IOException("Unsupported vault version");
+
+        final int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        int[] offsets = new int[count], lengths = new int[count];
+        for (int i = 0; i < count; ++i) {
+            names.add(in.readUTF());
+            offsets[i] = in.readInt();
+            lengths[i] = in.readInt();
+        }
+        final int recordsStart = content.length - in.available();
+        int recordsLength = 0;
+        for (int i = 0; i < count; ++i) {
+            byte[] payload = new byte[lengths[i]];
+            System.arraycopy(content, recordsStart + offsets[i], payload, 0, lengths[i]);
+            mEntries.put(names.get(i), payload);
+            recordsLength = Math.max(recordsLength, offsets[i] + lengths[i]);
+        }
+        in.skipBytes(recordsLength);
+        mValidLength = recordsStart + recordsLength;
+
+        // Replay the log; a torn record at the end (interrupted append) is dropped
+        try {
+            while (in.available() > 0) {
+                final byte op = in.readByte();
+                final String name = in.readUTF();
+                if (op == OP_PUT) {
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    mEntries.put(name, payload);
+                } else if (op == OP_DELETE) {
+                    mEntries.remove(name);
+                } else if (op == OP_RENAME) {
+                    final String newName = in.readUTF();
+                    byte[] payload = mEntries.remove(name);
+                    if (payload != null)
+                        mEntries.put(newName, payload);
+                } else
+                    break;
+                mValidLength = content.length - in.available();
+                ++mLogRecords;
+            }
+        } catch (EOFException eofe) {
+
+        }
+    }
+
+    @Override
+    public synchronized List<String> list() {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    @Override
+    public synchronized boolean contains(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    @Override
+    public synchronized byte[] read(String name) throws IOException {
+        byte[] payload = mEntries.get(name);
+        if (payload == null)
+            throw new FileNotFoundException(name + " not found in vault");
+        return payload.clone();
+    }
+
+    @Override
+    public synchronized void write(String name, byte[] content) throws IOException {
+        if (!DirectoryStore.isValidName(name))
+            throw new IOException("Invalid password name " + name);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(OP_PUT);
+        out.writeUTF(name);
+        out.writeInt(content.length);
+        out.write(content);
+        append(record.toByteArray());
+        mEntries.put(name, content.clone());
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized boolean rename(String from, String to) {
+        if (!mEntries.containsKey(from) || mEntries.containsKey(to) || !DirectoryStore.isValidName(to))
+            return false;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(OP_RENAME);
+            out.writeUTF(from);
+            out.writeUTF(to);
+            append(record.toByteArray());
+        } catch (IOException ioe) {
+            return false;
+        }
+        mEntries.put(to, mEntries.remove(from));
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        if (!mEntries.containsKey(name))
+            return false;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(OP_DELETE);
+            out.writeUTF(name);
+            append(record.toByteArray());
+        } catch (IOException ioe) {
+            return false;
+        }
+        mEntries.remove(name);
+        compactIfNeeded();
+        return true;
+    }
+
+    // Bulk updates rewrite the vault once instead of appending a synced record per entry
+    @Override
+    public synchronized void commit(StoreBatch batch) throws IOException {
+        for (String name : batch.writes().keySet())
+            if (!DirectoryStore.isValidName(name))
+                throw new IOException("Invalid password name " + name);
+        Map<String, byte[]> previous = new HashMap<>(mEntries);
+        for (Map.Entry<String, byte[]> write : batch.writes().entrySet())
+            mEntries.put(write.getKey(), write.getValue().clone());
+        for (String name : batch.deletes())
+            mEntries.remove(name);
+        try {
+            compact();
+        } catch (IOException ioe) {
+            mEntries.clear();
+            mEntries.putAll(previous);
+            throw ioe;
+        }
+    }
+
+    @Override
+    public File file(String name) {
+        return null;
+    }
+
+    private void append(byte[] record) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            if (raf.length() != mValidLength)
+                raf.setLength(mValidLength);
+            raf.seek(mValidLength);
+            raf.write(record);
+            raf.getFD().sync();
+        }
+        mValidLength += record.length;
+        ++mLogRecords;
+    }
+
+    private void compactIfNeeded() {
+        if (mLogRecords > COMPACT_THRESHOLD && mLogRecords > mEntries.size()) {
+            try {
+                compact();
+            } catch (IOException ioe) {
+                // The log is still intact, try again after the next update
+            }
+        }
+    }
+
+    // Rewrites header, index and packed records without the log, replacing the file atomically
+    synchronized void compact() throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        indexOut.writeInt(MAGIC);
+        indexOut.writeShort(VERSION);
+        indexOut.writeInt(mEntries.size());
+        for (Map.Entry<String, byte[]> entry : mEntries.entrySet()) {
+            indexOut.writeUTF(entry.getKey());
+            indexOut.writeInt(records.size());
+            indexOut.writeInt(entry.getValue().length);
+            records.write(entry.getValue());
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            index.writeTo(os);
+            records.writeTo(os);
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile))
+            throw new IOException("Couldn't replace " + mFile.getName());
+        mValidLength = index.size() + records.size();
+        mLogRecords = 0;
+    }
+
+    // One-time conversion of the <name>.pwd files of source into the vault; the caller keeps source from being used meanwhile
+    static VaultFile migrate(DirectoryStore source, File file) throws IOException {
+        VaultFile vault = new VaultFile(file);
+        List<String> names = source.list();
+        synchronized (vault) {
+            for (String name : names)
+                vault.mEntries.put(name, source.read(name));
+            vault.compact();
+        }
+        StoreBatch deletes = new StoreBatch();
+        for (String name : names)
+            deletes.delete(name);
+        source.commit(deletes);
+        return vault;
+    }
+
+    // Reverse of migrate(): writes every entry back to its own .pwd file in directory and removes the vault
+    static DirectoryStore unpack(VaultFile vault, File directory) throws IOException {
+        DirectoryStore destination = new DirectoryStore(directory);
+        StoreBatch writes = new StoreBatch();
+        for (String name : vault.list())
+            writes.write(name, vault.read(name));
+        destination.commit(writes);
+        if (!vault.mFile.delete())
+            throw new IOException("Couldn't remove " + vault.mFile.getName());
+        return destination;
+    }
+}
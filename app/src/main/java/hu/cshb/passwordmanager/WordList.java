@@ -0,0 +1,61 @@
+package hu.cshb.passwordmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * The passphrase word list, as packed by tools/pack_words.py:
+ *   magic, word count, (count + 1) offsets into the word bytes, the words in ASCII without separators
+ * The asset is stored uncompressed and memory-mapped, so opening it costs one pass over the offsets and a word is
+ * copied straight out of the mapping; there's never a String per word.
+ */
+final class WordList {
+    static final String ASSET = "words.bin";
+
+    private static final int MAGIC = 0x5057574C; // "PWWL"
+
+    private final ByteBuffer mBuffer;
+    private final int mSize;
+    private final int mWordsStart;
+
+    private WordList(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a word list");
+        mSize = buffer.getInt(4);
+        if (mSize < 2 || mSize > (buffer.capacity() - 12) / 4)
+            throw new IOException("Damaged word list");
+        mWordsStart = 8 + (mSize + 1) * 4;
+        for (int i = 0; i < mSize; ++i)
+            if (offset(buffer, i) >= offset(buffer, i + 1))
+                throw new IOException("Damaged word list");
+        if (offset(buffer, 0) != 0 || mWordsStart + offset(buffer, mSize) != buffer.capacity())
+            throw new IOException("Damaged word list");
+        mBuffer = buffer;
+    }
+
+    // The region may be part of a larger file, such as an uncompressed asset inside the APK
+    static WordList map(FileChannel channel, long offset, long length) throws IOException {
+        return new WordList(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int length(int index) {
+        return offset(mBuffer, index + 1) - offset(mBuffer, index);
+    }
+
+    // Copies the word to destination[position..position + length(index)), returns the position after it
+    int copy(int index, char[] destination, int position) {
+        final int end = mWordsStart + offset(mBuffer, index + 1);
+        for (int i = mWordsStart + offset(mBuffer, index); i < end; ++i)
+            destination[position++] = (char) mBuffer.get(i);
+        return position;
+    }
+
+    private static int offset(ByteBuffer buffer, int index) {
+        return buffer.getInt(8 + index * 4);
+    }
+}
@@ -0,0 +1,150 @@
+package hu.cshb.passwordmanager;
+
+import android.app.backup.BackupDataInput;
+import android.app.backup.BackupDataOutput;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Runs the agent the way the backup manager does, against the app's files dir in the Robolectric sandbox; nothing leaves the JVM
+@RunWith(RobolectricTestRunner.class)
+public class VaultBackupAgentTest {
+    private VaultBackupAgent mAgent;
+    private PasswordStore mStore;
+
+    @Before
+    public void setUp() {
+        mAgent = Robolectric.buildBackupAgent(VaultBackupAgent.class).create().get();
+        // The process-wide store the agent uses too
+        mStore = TrackedStore.shared(mAgent);
+    }
+
+    @Test
+    public void incrementalBackupSendsOnlyChangedRecords() throws IOException {
+        mStore.write("alpha", bytes("a1"));
+        mStore.write("beta", bytes("b1"));
+        final File firstState = new File(mAgent.getCacheDir(), "state1");
+        BackupDataOutput first = mock(BackupDataOutput.class);
+        mAgent.onBackup(null, first, write(firstState));
+        verify(first).writeEntityHeader("pwd:alpha", 2);
+        verify(first).writeEntityHeader("pwd:beta", 2);
+        verify(first, times(2)).writeEntityHeader(anyString(), anyInt());
+
+        mStore.write("beta", bytes("b2"));
+        mStore.delete("alpha");
+        mStore.write("gamma", bytes("g1"));
+        final File secondState = new File(mAgent.getCacheDir(), "state2");
+        BackupDataOutput second = mock(BackupDataOutput.class);
+        mAgent.onBackup(read(firstState), second, write(secondState));
+        verify(second).writeEntityHeader("pwd:beta", 2);
+        verify(second).writeEntityData(aryEq(bytes("b2")), eq(2));
+        verify(second).writeEntityHeader("pwd:gamma", 2);
+        verify(second).writeEntityHeader("pwd:alpha", -1);
+        verify(second, times(3)).writeEntityHeader(anyString(), anyInt());
+
+        BackupDataOutput third = mock(BackupDataOutput.class);
+        mAgent.onBackup(read(secondState), third, write(new File(mAgent.getCacheDir(), "state3")));
+        verify(third, never()).writeEntityHeader(anyString(), anyInt());
+    }
+
+    @Test
+    public void restoreWritesRecordsAndSkipsUnsafeNames() throws IOException {
+        BackupDataInput data = records(
+                "pwd:alpha", bytes("a1"),
+                "pwd:../shared_prefs/evil", bytes("x"),
+                "pwd:a/b", bytes("y"),
+                "other", bytes("z"));
+        mAgent.onRestore(data, 5, write(new File(mAgent.getCacheDir(), "state")));
+        assertArrayEquals(bytes("a1"), mStore.read("alpha"));
+        assertEquals(Collections.singletonList("alpha"), mStore.list());
+        assertFalse(new File(mAgent.getFilesDir().getParentFile(), "shared_prefs/evil.pwd").exists());
+        verify(data, times(3)).skipEntityData();
+    }
+
+    @Test
+    public void restoreFinishedImportsTheSnapshot() throws IOException {
+        final File sourceDir = new File(mAgent.getCacheDir(), "source");
+        sourceDir.mkdirs();
+        PasswordStore source = new DirectoryStore(sourceDir);
+        source.write("alpha", bytes("a1"));
+        source.write("beta", bytes("b1"));
+        final File snapshot = new File(mAgent.getFilesDir(), VaultBackupAgent.SNAPSHOT);
+        try (OutputStream os = new FileOutputStream(snapshot)) {
+            Archive.write(os, source, source.list(), Collections.emptyList(), true);
+        }
+
+        mAgent.onRestoreFinished();
+        assertArrayEquals(bytes("a1"), mStore.read("alpha"));
+        assertArrayEquals(bytes("b1"), mStore.read("beta"));
+        assertFalse(snapshot.exists());
+    }
+
+    @Test
+    public void agentAndActivityShareOneStore() throws IOException {
+        assertSame(mStore, TrackedStore.shared(mAgent.getApplicationContext()));
+        mStore.write("alpha", bytes("a1"));
+        mAgent.onRestore(records("pwd:beta", bytes("b1")), 5, write(new File(mAgent.getCacheDir(), "state")));
+        mStore.write("gamma", bytes("g1"));
+
+        // A fresh instance replays whatever the journal holds; nothing one writer committed was cut off by the other
+        PasswordStore reopened = new DirectoryStore(mAgent.getFilesDir());
+        assertArrayEquals(bytes("a1"), reopened.read("alpha"));
+        assertArrayEquals(bytes("b1"), reopened.read("beta"));
+        assertArrayEquals(bytes("g1"), reopened.read("gamma"));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ParcelFileDescriptor read(File file) throws IOException {
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    private static ParcelFileDescriptor write(File file) throws IOException {
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+    }
+
+    // A restore data set of key, content pairs, read the way BackupDataInput hands them out
+    private static BackupDataInput records(Object... keysAndContents) throws IOException {
+        BackupDataInput data = mock(BackupDataInput.class);
+        final int[] current = {-1};
+        when(data.readNextHeader()).thenAnswer(invocation -> ++current[0] * 2 < keysAndContents.length);
+        when(data.getKey()).thenAnswer(invocation -> keysAndContents[current[0] * 2]);
+        when(data.getDataSize()).thenAnswer(invocation -> ((byte[]) keysAndContents[current[0] * 2 + 1]).length);
+        when(data.readEntityData(any(byte[].class), anyInt(), anyInt())).thenAnswer(invocation -> {
+            final byte[] content = (byte[]) keysAndContents[current[0] * 2 + 1];
+            final int offset = invocation.<Integer>getArgument(1);
+            final int size = Math.min(invocation.<Integer>getArgument(2), content.length - offset);
+            System.arraycopy(content, offset, invocation.getArgument(0), offset, size);
+            return size;
+        });
+        return data;
+    }
+}
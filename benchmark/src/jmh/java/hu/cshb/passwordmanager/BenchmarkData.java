@@ -0,0 +1,30 @@
+package hu.cshb.passwordmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Deterministic test data shaped like a real vault
+final class BenchmarkData {
+    private static final String[] PREFIXES = { "mail", "Bank", "server", "router", "Wifi", "shop", "VPN", "work", "github", "cloud" };
+
+    private BenchmarkData() {
+    }
+
+    static List<String> names(int count) {
+        Random random = new Random(42);
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            names.add(PREFIXES[random.nextInt(PREFIXES.length)] + "-" + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36) + " " + i);
+        return names;
+    }
+
+    static char[][] passwords(int count, int length) {
+        Random random = new Random(42);
+        char[][] passwords = new char[count][length];
+        for (char[] password : passwords)
+            for (int i = 0; i < length; ++i)
+                password[i] = (char) (ShiftCodec.CHAR_LOWEST + random.nextInt(ShiftCodec.CHAR_HIGHEST - ShiftCodec.CHAR_LOWEST + 1));
+        return passwords;
+    }
+}
@@ -0,0 +1,65 @@
+package hu.cshb.passwordmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeping the names sorted: the full Collections.sort the Read tab used to do after every change,
+ * against building a NameCatalog and against a single insertion into one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogBenchmark {
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    int entries;
+
+    private List<String> mNames;
+    private List<String> mSortedNames;
+    private NameCatalog mCatalog;
+
+    @Setup
+    public void setUp() {
+        mNames = BenchmarkData.names(entries);
+        mSortedNames = new ArrayList<>(mNames);
+        Collections.sort(mSortedNames, String.CASE_INSENSITIVE_ORDER);
+        mCatalog = new NameCatalog(mNames);
+    }
+
+    @Benchmark
+    public List<String> sortNames() {
+        List<String> names = new ArrayList<>(mNames);
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        return names;
+    }
+
+    @Benchmark
+    public NameCatalog buildCatalog() {
+        return new NameCatalog(mNames);
+    }
+
+    // One stored password the old way: append and re-sort
+    @Benchmark
+    public boolean addAndSort() {
+        mSortedNames.add("new password");
+        Collections.sort(mSortedNames, String.CASE_INSENSITIVE_ORDER);
+        return mSortedNames.remove("new password");
+    }
+
+    @Benchmark
+    public boolean addToCatalog() {
+        mCatalog.add("new password");
+        return mCatalog.remove("new password");
+    }
+}
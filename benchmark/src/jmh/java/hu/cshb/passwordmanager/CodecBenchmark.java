@@ -0,0 +1,60 @@
+package hu.cshb.passwordmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// The storePassword encode loop and the master password TextWatcher decode loop, over every entry of the vault
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    int entries;
+
+    private static final String MASTER_PASSWORD = "correct horse";
+
+    private char[][] mPasswords;
+    private char[][] mCoded;
+    private char[] mScratch;
+    private final ShiftCodec mDecoder = new ShiftCodec();
+
+    @Setup
+    public void setUp() {
+        mPasswords = BenchmarkData.passwords(entries, 16);
+        mCoded = new char[entries][];
+        for (int i = 0; i < entries; ++i) {
+            mCoded[i] = mPasswords[i].clone();
+            ShiftCodec.encode(mCoded[i], MASTER_PASSWORD);
+        }
+        mScratch = new char[16];
+    }
+
+    @Benchmark
+    public int encode() {
+        int checksum = 0;
+        for (char[] password : mPasswords) {
+            System.arraycopy(password, 0, mScratch, 0, password.length);
+            ShiftCodec.encode(mScratch, MASTER_PASSWORD);
+            checksum += mScratch[0];
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    public int decode() {
+        int checksum = 0;
+        for (char[] coded : mCoded) {
+            mDecoder.decode(coded, MASTER_PASSWORD);
+            checksum += mDecoder.buffer().charAt(0);
+        }
+        return checksum;
+    }
+}
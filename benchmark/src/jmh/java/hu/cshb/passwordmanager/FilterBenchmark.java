@@ -0,0 +1,53 @@
+package hu.cshb.passwordmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The Read tab filter: building the NameIndex, and the searches while a query is typed letter by letter
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilterBenchmark {
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    int entries;
+
+    private static final String QUERY = "server-1";
+
+    private NameCatalog mCatalog;
+    private NameIndex mIndex;
+
+    @Setup
+    public void setUp() {
+        mCatalog = new NameCatalog(BenchmarkData.names(entries));
+        mIndex = new NameIndex(mCatalog);
+    }
+
+    @Benchmark
+    public NameIndex buildIndex() {
+        return new NameIndex(mCatalog);
+    }
+
+    @Benchmark
+    public int typeQuery() {
+        int matches = 0;
+        for (int length = 1; length <= QUERY.length(); ++length)
+            matches += mIndex.search(QUERY.subSequence(0, length)).size();
+        return matches + mIndex.search("").size();
+    }
+
+    // A query that doesn't extend the previous one, so nothing can be refined
+    @Benchmark
+    public List<String> freshQuery() {
+        mIndex.search("");
+        return mIndex.search("vpn-");
+    }
+}
@@ -0,0 +1,52 @@
+package hu.cshb.passwordmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+// Generating one password per vault entry with the Generate tab's default constraints, one by one and as a batch
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeneratorBenchmark {
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    int entries;
+
+    private final PasswordGenerator mGenerator = new PasswordGenerator(16, 2, 16, 2, 16, 2, 16);
+
+    @Benchmark
+    public void generate(Blackhole blackhole) {
+        for (int i = 0; i < entries; ++i) {
+            char[] password = new char[mGenerator.length()];
+            mGenerator.generate(password);
+            blackhole.consume(password);
+        }
+    }
+
+    @Benchmark
+    public void generateBatch(Blackhole blackhole) throws IOException {
+        mGenerator.write(entries, new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                blackhole.consume(buffer);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
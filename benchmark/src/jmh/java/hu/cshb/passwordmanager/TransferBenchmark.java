@@ -0,0 +1,82 @@
+package hu.cshb.passwordmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Export-sized copies: every .pwd file of the vault through the channel and the stream paths of Transfer
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferBenchmark {
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    int entries;
+
+    private File mSource;
+    private File mDestination;
+
+    @Setup
+    public void setUp() throws IOException {
+        mSource = Files.createTempDirectory("vault").toFile();
+        mDestination = Files.createTempDirectory("export").toFile();
+        Random random = new Random(42);
+        byte[] content = new byte[64];
+        for (int i = 0; i < entries; ++i) {
+            random.nextBytes(content);
+            try (FileOutputStream os = new FileOutputStream(new File(mSource, i + ".pwd"))) {
+                os.write(content);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File directory : new File[] { mSource, mDestination }) {
+            File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            directory.delete();
+        }
+    }
+
+    @Benchmark
+    public long copyChannels() throws IOException {
+        long total = 0;
+        for (int i = 0; i < entries; ++i) {
+            final String name = i + ".pwd";
+            try (FileInputStream is = new FileInputStream(new File(mSource, name));
+                 FileOutputStream os = new FileOutputStream(new File(mDestination, name))) {
+                total += Transfer.copy(is.getChannel(), os.getChannel());
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long copyStreams() throws IOException {
+        long total = 0;
+        for (int i = 0; i < entries; ++i) {
+            final String name = i + ".pwd";
+            try (FileInputStream is = new FileInputStream(new File(mSource, name));
+                 FileOutputStream os = new FileOutputStream(new File(mDestination, name))) {
+                total += Transfer.copy(is, os);
+            }
+        }
+        return total;
+    }
+}
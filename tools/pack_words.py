@@ -0,0 +1,30 @@
+#!/usr/bin/env python3
+"""Packs a word list, one word per line, into the memory-mapped asset read by WordList:
+     magic "PWWL", word count, (count + 1) offsets into the word bytes, the words without separators
+   All integers are big-endian 32 bit. Words must be ASCII and unique.
+
+   tools/pack_words.py tools/wordlist.txt app/src/main/assets/words.bin
+"""
+import struct
+import sys
+
+
+def main(source, target):
+    with open(source, encoding='ascii') as f:
+        words = [line.strip() for line in f if line.strip()]
+    if len(words) < 2 or len(set(words)) != len(words):
+        sys.exit('%s: need at least two unique words' % source)
+    offsets = [0]
+    for word in words:
+        offsets.append(offsets[-1] + len(word))
+    with open(target, 'wb') as f:
+        f.write(b'PWWL')
+        f.write(struct.pack('>i', len(words)))
+        f.write(struct.pack('>%di' % len(offsets), *offsets))
+        f.write(''.join(words).encode('ascii'))
+
+
+if __name__ == '__main__':
+    if len(sys.argv) != 3:
+        sys.exit('usage: pack_words.py words.txt words.bin')
+    main(sys.argv[1], sys.argv[2])